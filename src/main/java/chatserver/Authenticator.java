@@ -0,0 +1,157 @@
+package chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import util.Config;
+import util.ExecutorFactory;
+import util.PasswordHash;
+
+/**
+ * Verifies login passwords off the connection threads.
+ * <p/>
+ * Verifying a PBKDF2 hash costs milliseconds of CPU, so it runs on a small
+ * pool with a bounded queue. When the queue is full, {@link #verify} fails
+ * fast with a {@link RejectedExecutionException} instead of letting a storm
+ * of logins delay every other command. Successful verifications are
+ * remembered for a short time, keyed by user, as a salted SHA-256 digest of
+ * the password together with the stored credential it was checked against,
+ * so a reconnect with the same password skips the hash and a changed
+ * credential is never answered from the cache.
+ * <p/>
+ * The password of an unknown user is checked against a dummy credential
+ * on the same pool, so the answer takes as long as for an existing user and
+ * does not tell whether the username exists.
+ */
+class Authenticator {
+
+	private final ExecutorService executor;
+	private final long cacheTtlNanos;
+	private final int cacheSize;
+	private final byte[] cacheSalt = new byte[16];
+	private final ConcurrentHashMap<String, Verified> cache = new ConcurrentHashMap<String, Verified>();
+	private final CredentialStore credentials;
+	private final String dummy;
+
+	/**
+	 * @param credentials
+	 *            the accounts to verify against
+	 * @param threads
+	 *            the number of verifying threads
+	 * @param queueCapacity
+	 *            the number of waiting verifications before new ones are
+	 *            rejected
+	 * @param cacheTtlMillis
+	 *            how long a successful verification is remembered, 0 to
+	 *            disable the cache
+	 * @param cacheSize
+	 *            the maximum number of remembered verifications
+	 */
+	Authenticator(CredentialStore credentials, int threads, int queueCapacity, long cacheTtlMillis, int cacheSize) {
+		this.credentials = credentials;
+		this.dummy = PasswordHash.dummy(credentials.size() > 0 ? credentials.credential(credentials.username(0)) : null);
+		this.executor = ExecutorFactory.newBoundedPool(Math.max(1, threads), queueCapacity, "chatserver-auth");
+		this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+		this.cacheSize = cacheSize;
+		new SecureRandom().nextBytes(cacheSalt);
+	}
+
+	static Authenticator fromConfig(Config config, CredentialStore credentials) {
+		return new Authenticator(credentials,
+				config.getInt("auth.threads", Runtime.getRuntime().availableProcessors()),
+				config.getInt("auth.queue", 256),
+				config.getInt("auth.cache.ttl", 60000),
+				config.getInt("auth.cache.size", 10000));
+	}
+
+	/**
+	 * Checks the password of the given user.
+	 *
+	 * @return a future completed with {@code true} if the password is valid
+	 * @throws RejectedExecutionException
+	 *             if too many verifications are waiting
+	 */
+	CompletableFuture<Boolean> verify(final String username, final String password) {
+		final String stored = credentials.credential(username);
+		if (stored == null) {
+			return CompletableFuture.supplyAsync(() -> {
+				PasswordHash.verify(password, dummy);
+				return false;
+			}, executor);
+		}
+
+		final byte[] digest = this.digest(password);
+		Verified verified = cache.get(username);
+		if (verified != null && verified.matches(stored, digest)) {
+			return CompletableFuture.completedFuture(true);
+		}
+
+		return CompletableFuture.supplyAsync(() -> {
+			boolean valid = PasswordHash.verify(password, stored);
+			if (valid) this.remember(username, new Verified(stored, digest, System.nanoTime() + cacheTtlNanos));
+			return valid;
+		}, executor);
+	}
+
+	/**
+	 * Forgets a remembered verification of the given user.
+	 */
+	void invalidate(String username) {
+		cache.remove(username);
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void remember(String username, Verified verified) {
+		if (cacheTtlNanos <= 0) return;
+		if (cache.size() >= cacheSize) {
+			long now = System.nanoTime();
+			for (Iterator<Verified> it = cache.values().iterator(); it.hasNext();) {
+				if (it.next().expired(now)) it.remove();
+			}
+			if (cache.size() >= cacheSize) return;
+		}
+		cache.put(username, verified);
+	}
+
+	private byte[] digest(String password) {
+		try {
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			sha256.update(cacheSalt);
+			return sha256.digest(password.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Verified {
+		final String credential;
+		final byte[] digest;
+		final long expires;
+
+		Verified(String credential, byte[] digest, long expires) {
+			this.credential = credential;
+			this.digest = digest;
+			this.expires = expires;
+		}
+
+		boolean matches(String credential, byte[] digest) {
+			return !expired(System.nanoTime()) && this.credential.equals(credential)
+					&& MessageDigest.isEqual(this.digest, digest);
+		}
+
+		boolean expired(long now) {
+			return now - expires > 0;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package chatserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Config;
+
+/**
+ * Decides what happens to messages for a client that does not read fast
+ * enough, and counts every decision.
+ * <p/>
+ * A session becomes congested once its queued bytes would exceed the high
+ * watermark and stays congested until the writer drained it below the low
+ * watermark. While congested, the configured action applies:
+ * <ul>
+ * <li>{@code drop-oldest} - queued messages are evicted from the head until
+ * the queue is back at the low watermark.</li>
+ * <li>{@code drop-newest} - new messages are rejected.</li>
+ * <li>{@code disconnect} - messages are still queued, but if the session is
+ * congested for longer than the grace period it is disconnected.</li>
+ * </ul>
+ * One instance is shared by all sessions of a server.
+ */
+class BackpressurePolicy {
+
+	enum Action {
+		DROP_OLDEST, DROP_NEWEST, DISCONNECT
+	}
+
+	final int capacity;
+	final long highWatermark;
+	final long lowWatermark;
+	final long gracePeriodNanos;
+	final Action action;
+
+	final AtomicLong congestions = new AtomicLong();
+	final AtomicLong droppedOldest = new AtomicLong();
+	final AtomicLong droppedNewest = new AtomicLong();
+	final AtomicLong droppedFull = new AtomicLong();
+	final AtomicLong disconnects = new AtomicLong();
+
+	BackpressurePolicy(int capacity, long highWatermark, long lowWatermark,
+			long gracePeriodMillis, Action action) {
+		this.capacity = capacity;
+		this.highWatermark = highWatermark;
+		this.lowWatermark = Math.min(lowWatermark, highWatermark);
+		this.gracePeriodNanos = TimeUnit.MILLISECONDS.toNanos(gracePeriodMillis);
+		this.action = action;
+	}
+
+	/**
+	 * Reads the {@code tcp.outbound.*} properties.
+	 */
+	static BackpressurePolicy fromConfig(Config config) {
+		String action = config.getString("tcp.outbound.policy", "drop-oldest");
+		return new BackpressurePolicy(
+				config.getInt("tcp.outbound.capacity", 4096),
+				config.getInt("tcp.outbound.highWatermark", 128 * 1024),
+				config.getInt("tcp.outbound.lowWatermark", 32 * 1024),
+				config.getInt("tcp.outbound.grace", 5000),
+				Action.valueOf(action.trim().toUpperCase().replace('-', '_')));
+	}
+
+	/**
+	 * @return the counters in human readable form
+	 */
+	String stats() {
+		return "Outbound policy: " + action.name().toLowerCase().replace('_', '-') + "\n"
+				+ "congested sessions: " + congestions.get() + "\n"
+				+ "dropped oldest: " + droppedOldest.get() + "\n"
+				+ "dropped newest: " + droppedNewest.get() + "\n"
+				+ "dropped (queue full): " + droppedFull.get() + "\n"
+				+ "disconnected: " + disconnects.get() + "\n";
+	}
+}
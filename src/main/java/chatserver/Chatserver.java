@@ -1,60 +1,98 @@
 package chatserver;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
+import nameserver.BatchResult;
 import nameserver.INameserver;
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
 import nameserver.exceptions.UnknownUsernameException;
 import util.Config;
+import util.ExecutorFactory;
 
 public class Chatserver implements IChatserverCli, Runnable {
 
+	/**
+	 * Encoding of the line protocol between client and chatserver.
+	 */
+	static final Charset CHARSET = Charset.defaultCharset();
+	
+	/**
+	 * Maximum number of queued messages a connection writes with one call.
+	 */
+	static final int WRITE_BATCH_SIZE = 64;
+	
+	/**
+	 * Number of messages returned by {@code !history} without arguments.
+	 */
+	private static final int DEFAULT_HISTORY_COUNT = 10;
+	private static final int USERS_PAGE_SIZE = 1000;
+	private static final int MAX_DEFERRED_COMMANDS = 64;
+
 	private String componentName;
 	private Config config;
 	private InputStream userRequestStream;
 	private PrintStream userResponseStream;
 	
-	private String lastMessage = "No message received !";
+	private final MessageHistory history;
+	private MessageJournal journal;
 
-	 private HashMap<String,String> users;
-	 private HashMap<String,Socket> loggedInUsers = new HashMap<String,Socket>();
+	 private CredentialStore credentials;
+	 private final Authenticator authenticator;
+	 private final SessionRegistry loggedInUsers = new SessionRegistry();
+	 private final RoomIndex rooms = new RoomIndex();
 
-     private UDPServer udpServer;
+     private NioUDPServer udpServer;
      private TCPServer tcpServer;
+     private NioTCPServer nioTcpServer;
+     
+     private ExecutorService executor;
+     private ExecutorService writerExecutor;
+     private BackpressurePolicy backpressure;
      
      BufferedReader inFromUser;
      
  	private Registry rmiReg;
  	private INameserver rootnameserver;
+ 	private NamingService naming;
 
      
      
-     public static ArrayList<Socket> socList = new ArrayList<Socket>();
+     public static Set<Socket> socList = ConcurrentHashMap.newKeySet();
      
 	/**
 	 * @param componentName
@@ -73,42 +111,97 @@ public class Chatserver implements IChatserverCli, Runnable {
 		this.config = config;
 		this.userRequestStream = userRequestStream;
 		this.userResponseStream = userResponseStream;
+		this.history = new MessageHistory(config.getInt("history.size", 1024));
 
-		Config userConfig = new Config("user");
-        users = new HashMap<>();
-        Set<String> userKeys= userConfig.listKeys();
+		String journalDir = config.getString("journal.dir", "").trim();
+		if (!journalDir.isEmpty()) {
+			journal = new MessageJournal(Paths.get(journalDir),
+					config.getInt("journal.segment.size", 16 * 1024 * 1024),
+					config.getInt("journal.flush.interval", 200));
+			journal.replay(history);
+		}
 
-        for (String key : userKeys) {
-                int posUserNameEnd = key.indexOf(".password");
-                String username = key.substring(0, posUserNameEnd);
-                String password = userConfig.getString(key);
-                
-                users.put(username, password);
-        }
+		String usersFile = config.getString("users.file", "").trim();
+		Path source = usersFile.isEmpty() ? resourceFile("user.properties") : Paths.get(usersFile);
+		if (source != null && config.getString("users.reload", "true").equals("true")) {
+			ReloadableCredentialStore.Loader loader;
+			if (usersFile.isEmpty()) {
+				loader = PropertiesCredentialStore::new;
+			} else {
+				loader = MappedCredentialStore::new;
+			}
+			ReloadableCredentialStore reloadable = new ReloadableCredentialStore(source, loader, this::credentialsReloaded);
+			Thread watcher = new Thread(reloadable, "users-reload");
+			watcher.setDaemon(true);
+			watcher.start();
+			credentials = reloadable;
+		} else if (usersFile.isEmpty()) {
+			credentials = new PropertiesCredentialStore(new Config("user"));
+		} else {
+			credentials = new MappedCredentialStore(Paths.get(usersFile));
+		}
+		authenticator = Authenticator.fromConfig(config, credentials);
+	}
+
+	/**
+	 * @return the file of the given classpath resource or {@code null} if the
+	 *         resource is not a plain file, e.g. inside a jar
+	 */
+	private static Path resourceFile(String name) {
+		URL url = Chatserver.class.getClassLoader().getResource(name);
+		if (url == null || !url.getProtocol().equals("file")) return null;
+		try {
+			return Paths.get(url.toURI());
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	private void credentialsReloaded(ReloadableCredentialStore.Diff diff) {
+		for (String username : diff.changed) {
+			authenticator.invalidate(username);
+		}
+		for (String username : diff.removed) {
+			authenticator.invalidate(username);
+		}
+		this.write("Reloaded users: " + diff + ".");
 	}
 
 	@Override
 	public void run() {
 		try {
+			NamingService.limitResponseTime(config);
 			rmiReg = LocateRegistry.getRegistry(config.getString("registry.host"), config.getInt("registry.port"));
 			rootnameserver = (INameserver) rmiReg.lookup(config.getString("root_id"));
+			naming = NamingService.fromConfig(config, new NameResolver(rootnameserver, config));
 		} catch (RemoteException | NotBoundException e) {
 			this.write("Error when connecting with the registry.");
 			return;
 		}
 		
+		// a blocking session holds its thread for its whole lifetime
+		executor = ExecutorFactory.createUnbounded(config, "chatserver");
+		writerExecutor = ExecutorFactory.create(config, "chatserver-writer");
+		backpressure = BackpressurePolicy.fromConfig(config);
+		
 		try {
 		try {
-			udpServer = new UDPServer(config.getInt("udp.port"));
+			udpServer = new NioUDPServer(loggedInUsers.presence(), config.getInt("udp.port"), config.getInt("udp.threads", 1));
 			Thread udp_thread = new Thread(udpServer);
 			udp_thread.start();
 			
 			
-			tcpServer = new TCPServer(config.getInt("tcp.port"));
-			Thread tcp_thread = new Thread(tcpServer);
+			Thread tcp_thread;
+			if (config.getString("tcp.mode", "blocking").equals("nio")) {
+				nioTcpServer = new NioTCPServer(this, config.getInt("tcp.port"), config.getInt("tcp.nio.threads", 2), backpressure);
+				tcp_thread = new Thread(nioTcpServer);
+			} else {
+				tcpServer = new TCPServer(config.getInt("tcp.port"));
+				tcp_thread = new Thread(tcpServer);
+			}
 			tcp_thread.start();
 		
-		} catch (SocketException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
@@ -118,8 +211,27 @@ public class Chatserver implements IChatserverCli, Runnable {
 				String sentence = inFromUser.readLine();
 				if (sentence == null) return;
 				
-				if (sentence.equals("!users")) {
-					this.write(this.users());
+				if (sentence.equals("!users") || sentence.indexOf("!users ") == 0) {
+					String[] parts = sentence.trim().split("\\s+");
+					String filter = "all";
+					String prefix = "";
+					int next = 1;
+					if (parts.length > next && (parts[next].equals("online") || parts[next].equals("offline"))) {
+						filter = parts[next++];
+					}
+					if (parts.length > next) {
+						prefix = parts[next++];
+					}
+					if (parts.length > next) {
+						this.write("Usage: !users [online|offline] [<prefix>]");
+					} else {
+						this.write(this.printUsers(filter, prefix));
+					}
+					continue;
+				}
+				
+				if (sentence.equals("!stats")) {
+					this.write(backpressure.stats());
 					continue;
 				}
 				
@@ -136,29 +248,73 @@ public class Chatserver implements IChatserverCli, Runnable {
 		}
 	}
 	
-	private String listOnlineUsers() throws IOException {
-		String ret = "Online users: \n";
-		
-		SortedSet<String> users_sorted = new TreeSet<String>(loggedInUsers.keySet());
-		for (String user : users_sorted) {
-		    ret += "* " + user + "\n";
-		}
-		
-		return ret;
-	}
-	
 	@Override
 	public String users() throws IOException {
-		String ret = "";
-		SortedSet<String> users_sorted = new TreeSet<String>(users.keySet());
-		for (String user : users_sorted) {
-			if (loggedInUsers.containsKey(user)) {
-				ret += user + " online\n";
-			} else {
-				ret += user + " offline\n";
+		return this.users("all", "");
+	}
+
+	/**
+	 * @param filter
+	 *            {@code all}, {@code online} or {@code offline}
+	 * @param prefix
+	 *            the prefix of the listed usernames, empty for all
+	 * @return the report, one line per user
+	 */
+	public String users(String filter, String prefix) {
+		StringBuilder report = new StringBuilder();
+		this.listUsers(filter, prefix, report, false);
+		return report.toString();
+	}
+
+	/**
+	 * Prints the users with the given prefix in pages of
+	 * {@value #USERS_PAGE_SIZE} lines, so the report never has to be held in
+	 * memory as a whole.
+	 *
+	 * @return the number of listed users, as a line to print after the report
+	 * @see #users(String, String)
+	 */
+	private String printUsers(String filter, String prefix) {
+		int listed = this.listUsers(filter, prefix, new StringBuilder(), true);
+		return listed + (listed == 1 ? " user listed." : " users listed.");
+	}
+
+	/**
+	 * Appends the report to the given page, which is printed and cleared
+	 * every {@value #USERS_PAGE_SIZE} lines if {@code paged} is set.
+	 *
+	 * @return the number of listed users
+	 */
+	private int listUsers(String filter, String prefix, StringBuilder page, boolean paged) {
+		int listed = 0;
+
+		if (filter.equals("online")) {
+			// the presence index is sorted as well and usually much smaller
+			for (String user : loggedInUsers.presence().usernames().tailSet(prefix)) {
+				if (!user.startsWith(prefix)) break;
+				page.append(user).append(" online\n");
+				if (++listed % USERS_PAGE_SIZE == 0 && paged) this.flushPage(page);
+			}
+		} else {
+			boolean offlineOnly = filter.equals("offline");
+			CredentialStore store = credentials.snapshot();
+			for (int i = store.first(prefix); i < store.size(); i++) {
+				String user = store.username(i);
+				if (!user.startsWith(prefix)) break;
+				boolean online = loggedInUsers.isOnline(user);
+				if (offlineOnly && online) continue;
+				page.append(user).append(online ? " online\n" : " offline\n");
+				if (++listed % USERS_PAGE_SIZE == 0 && paged) this.flushPage(page);
 			}
 		}
-		return ret;
+		if (paged) this.flushPage(page);
+		return listed;
+	}
+
+	private void flushPage(StringBuilder page) {
+		userResponseStream.print(page);
+		userResponseStream.flush();
+		page.setLength(0);
 	}
 
 	@Override
@@ -166,7 +322,14 @@ public class Chatserver implements IChatserverCli, Runnable {
 		inFromUser.close();
 		
 		udpServer.exit();
-		tcpServer.exit();
+		if (tcpServer != null) tcpServer.exit();
+		if (nioTcpServer != null) nioTcpServer.exit();
+		executor.shutdownNow();
+		writerExecutor.shutdownNow();
+		if (journal != null) journal.close();
+		if (naming != null) naming.shutdown();
+		authenticator.shutdown();
+		credentials.close();
 		
 		return null;
 	}
@@ -188,73 +351,14 @@ public class Chatserver implements IChatserverCli, Runnable {
 		userResponseStream.flush();
 	}
 	
-	private boolean isValidLogin(String username, String password) {
-		if (users.get(username) == null) return false;
-		if (users.get(username).equals(password)) return true;
-		return false;
-	}
-	
-	private void registerUser(String username, String address) throws RemoteException, AlreadyRegisteredException, InvalidDomainException {
-		rootnameserver.registerUser(username, address);
-	}
-	
-	private String lookup(String username) throws RemoteException, InvalidDomainException, UnknownUsernameException {
-		
-		String[] zones = username.split("\\.");
-		INameserver nameserver = rootnameserver;
-		
-		for (int i = zones.length - 1; i>0; i--) {
-			nameserver = (INameserver) nameserver.getNameserver(zones[i]);
-		}
-		
-		return nameserver.lookup(zones[0]);
+	/**
+	 * Creates the protocol state for a new client connection.
+	 */
+	ClientSession openSession(ClientConnection connection) {
+		return new ClientSession(connection);
 	}
 	
 
-class UDPServer implements Runnable {
-        private DatagramSocket datagramSocket;
-        
-        public UDPServer(int port) throws SocketException {
-                this.datagramSocket = new DatagramSocket(port);
-        }
-
-        @Override
-        public void run() {
-                while(true){
-                        byte[] buf = new byte[1024];
-                        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                        try {
-                                datagramSocket.receive(packet);
-                                String received = new String(packet.getData()).trim();
-                                if (received == null) return;
-                                
-                                if (received.equals("!list")) {
-                                	this.send(Chatserver.this.listOnlineUsers(), packet.getAddress(), packet.getPort());
-                                } else {
-                                	this.send("UNKNOWN UDP COMMAND", packet.getAddress(), packet.getPort());
-                                }
-                                
-                                
-                        } catch (IOException e) {
-                                e.printStackTrace();
-                        }
-                }
-        }
-
-        private void send(String reply, InetAddress ip, int port) throws IOException {
-        	//System.out.println("SEVER- REPLYING VIA UDP to client - " + reply);
-        	byte[] sendData = new byte[1024];
-        	
-        	sendData = reply.getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, ip, port);
-            datagramSocket.send(sendPacket);
-        }
-        
-        public void exit() {
-        	datagramSocket.disconnect();
-        	datagramSocket.close();
-        }
-}
 
 
 class TCPServer implements Runnable {
@@ -262,6 +366,14 @@ class TCPServer implements Runnable {
     private ServerSocket ss = null;
     private Socket incoming = null;
     private int port;
+    private final Set<HandleClient> connections = ConcurrentHashMap.newKeySet();
+    // 0 for no limit
+    private final int maxSessions = config.getInt("tcp.sessions.max", 0);
+    // how long a write may block, 0 for no limit
+    private final long writeTimeoutNanos = backpressure.action == BackpressurePolicy.Action.DISCONNECT
+    		? backpressure.gracePeriodNanos
+    		: TimeUnit.MILLISECONDS.toNanos(config.getInt("tcp.write.timeout", 60000));
+    private ScheduledExecutorService watchdog;
 
     public TCPServer(int port) {
     	this.port = port;
@@ -271,11 +383,32 @@ class TCPServer implements Runnable {
 
         try {
             ss = new ServerSocket(port);
+            
+            long timeout = writeTimeoutNanos > 0 ? Math.min(writeTimeoutNanos, backpressure.gracePeriodNanos) : backpressure.gracePeriodNanos;
+            long period = Math.max(100, TimeUnit.NANOSECONDS.toMillis(timeout) / 4);
+            watchdog = Executors.newSingleThreadScheduledExecutor();
+            watchdog.scheduleWithFixedDelay(new Runnable() {
+            	@Override
+            	public void run() {
+            		checkWriters();
+            	}
+            }, period, period, TimeUnit.MILLISECONDS);
 
             while (true) {
                 incoming = ss.accept();
                 socList.add(incoming);
-                new Thread(new HandleClient(incoming)).start();
+                if (maxSessions > 0 && connections.size() >= maxSessions) {
+                	this.reject(incoming);
+                	continue;
+                }
+                HandleClient client = new HandleClient(incoming);
+                try {
+                	connections.add(client);
+                	executor.execute(client);
+                } catch (RejectedExecutionException e) {
+                	connections.remove(client);
+                	this.reject(incoming);
+                }
             }
 
         } catch (IOException e) {
@@ -291,7 +424,42 @@ class TCPServer implements Runnable {
 
     }
     
+    /**
+     * Closes the connections whose writer has been blocked in a write for
+     * longer than the write timeout, so a client that stopped reading does
+     * not keep a writer thread forever. With the drop policies the timeout is
+     * {@code tcp.write.timeout}, so a slow reader loses messages long before
+     * it loses the connection; with {@code disconnect} it is the grace
+     * period, which is also applied to clients that get no further messages.
+     */
+    private void checkWriters() {
+    	for (HandleClient client : connections) {
+    		boolean blocked = writeTimeoutNanos > 0 && client.writer.blockedNanos() > writeTimeoutNanos;
+    		if (blocked || client.outbound.checkOverdue()) {
+    			client.abort();
+    		}
+    	}
+    }
+    
+    /**
+     * Turns away a connection beyond {@code tcp.sessions.max}.
+     */
+    private void reject(Socket socket) {
+    	try {
+    		socket.getOutputStream().write("Server busy, please try again later.\n".getBytes(CHARSET));
+    	} catch (IOException e) {
+    		// closed anyway
+    	}
+    	try {
+    		socket.close();
+    	} catch (IOException e) {
+    		//e.printStackTrace();
+    	}
+    	socList.remove(socket);
+    }
+    
     public void exit() {
+    	if (watchdog != null) watchdog.shutdownNow();
     	try {
     	ss.close();
     	for (Socket sock : socList) {
@@ -302,49 +470,27 @@ class TCPServer implements Runnable {
 		}
     }
 
-    class HandleClient implements Runnable {
+    class HandleClient implements Runnable, ClientConnection {
 
         InputStream is = null;
-        DataOutputStream outToClient = null;
+        OutputStream outToClient = null;
         InputStreamReader isr = null;
         BufferedReader br = null;
-        PrintWriter pw = null;
-        boolean isDone = false;
-        String username = "";
-        
-        boolean isLoggedIn = false;
 
         Socket clientsocket = null;
+        ClientSession session;
+
+        private final OutboundQueue outbound = new OutboundQueue(backpressure);
+        private final AtomicBoolean writerScheduled = new AtomicBoolean();
+        private final Writer writer = new Writer();
 
         public HandleClient(Socket socket) throws IOException {
 
             this.clientsocket = socket;
-            outToClient = new DataOutputStream(clientsocket.getOutputStream());
-        }
-
-        
-        private void login() throws IOException {
-            while (true) {
-            	String command =  br.readLine().trim();
-            	
-                if (command.indexOf("!login") == 0) {
-                	String[] parts = command.split(" ");
-                	username = parts[1];
-                	if (Chatserver.this.isValidLogin(username, parts[2])) {
-                		this.isLoggedIn = true;
-                		this.sendToClient("Successfully logged in.");
-                		loggedInUsers.put(username, clientsocket);
-                		break;
-                	} else {
-                		this.sendToClient("Wrong username or password.");
-                	}
-                } else {
-                	this.sendToClient("You are not logged in. Please use !login first.");
-                }
-            }
+            outToClient = clientsocket.getOutputStream();
+            session = new ClientSession(this);
         }
         
-        
         @Override
         public void run() {
             try {
@@ -352,116 +498,545 @@ class TCPServer implements Runnable {
                 isr = new InputStreamReader(is);
                 br = new BufferedReader(isr);
 
-
-                this.login();
-                    
-                while (true) {
-                    	String command =  br.readLine().trim();
-                    	if (command == null) return;
-                    	
-                    	if (command.indexOf("!send ") == 0) {
-                    		command = command.replace("!send ", "");
-                    		new Thread(new GlobalChatMessage(command, username)).start();
-                    		continue;
-                    	}
-                    	
-                    	if (command.indexOf("!register ") == 0) {
-                    		String[] parts = command.split(" ");
-                    		
-                    		try {
-								Chatserver.this.registerUser(username, parts[1]);
-							} catch (AlreadyRegisteredException
-									| InvalidDomainException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-                    		continue;
-                    	}
-                    	
-                    	if (command.indexOf("!lookup ") == 0) {
-                    		String[] parts = command.split(" ");
-                    		try {
-								this.sendToClient(Chatserver.this.lookup(parts[1]));
-							} catch (InvalidDomainException e) {
-								this.sendToClient("Invalid domain! No entry exits for this user.");
-							} catch (UnknownUsernameException e) {
-								this.sendToClient("No entry exits for this user.");
-							}
-                    		continue;
-                    	}
-                    	
-                    	if (command.indexOf("!lookupSilent ") == 0) {
-                    		String[] parts = command.split(" ");
-                    		try {
-                    			this.sendToClient("!lookupResult " + Chatserver.this.lookup(parts[1]));
-                    		} catch (InvalidDomainException e) {
-                    			this.sendToClient("!lookupResult error");
-                    		} catch (UnknownUsernameException e) {
-                    			this.sendToClient("!lookupResult error");
-                    		}
-                    		continue;
-                    	}
-                    	
-                    	if (command.equals("!lastMsg")) {
-                    		this.sendToClient(lastMessage);
-                    		continue;
-                    	}
+                while (!clientsocket.isClosed()) {
+                    	String command = br.readLine();
+                    	if (command == null) break;
                     	
-                    	if (command.equals("!logout")) {
-                    		this.sendToClient("Successfully logged out.");
-                    		loggedInUsers.remove(username);
-                    		
-                    		this.login();
-                    		continue;
-                    	}
-                    	
-                    	if (command.equals("!exit")) {
-                    		loggedInUsers.remove(username);
-                    		br.close();
-                            pw.close();
-                            clientsocket.close();
-                            socList.remove(incoming);
-                    	}
-                    	
-                    	this.sendToClient("Invalid command!");
+                    	session.handleCommand(command);
                 }
                 
             } catch (IOException e) {
             	//e.printStackTrace();
+            } finally {
+            	this.close();
             }
         }
         
-        private void sendToClient(String msg) throws IOException {
-        	outToClient.writeBytes(msg+"\n");
+        @Override
+        public boolean send(ByteBuffer message) throws IOException {
+        	if (clientsocket.isClosed()) throw new IOException("Connection closed");
+        	if (!outbound.offer(message)) {
+        		if (outbound.isOverdue()) this.close();
+        		return false;
+        	}
+        	if (writerScheduled.compareAndSet(false, true)) writerExecutor.execute(writer);
+        	return true;
+        }
+
+        /**
+         * Closes the connection with a reset, so that neither the kernel
+         * keeps the unsent bytes of a client that stopped reading nor the
+         * close waits for them.
+         */
+        void abort() {
+        	try {
+        		clientsocket.setSoLinger(true, 0);
+        	} catch (IOException e) {
+        		// closed already
+        	}
+        	this.close();
         }
-        
 
+        @Override
+        public void close() {
+        	try {
+        		clientsocket.close();
+        	} catch (IOException e) {
+        		//e.printStackTrace();
+        	}
+        	outbound.clear();
+        	socList.remove(clientsocket);
+        	connections.remove(this);
+        	session.closed();
+        }
+
+        /**
+         * Drains the outbound queue. All messages taken out in one round are
+         * copied into a single buffer and written with one call, so a burst of
+         * broadcasts costs one syscall instead of one per message.
+         */
+        class Writer implements Runnable {
+        	private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH_SIZE];
+        	private byte[] buffer = new byte[8192];
+        	// System.nanoTime() when the current write started, 0 if not writing
+        	private volatile long writeStarted;
+
+        	/**
+        	 * @return how long the current write has been blocked, 0 if the
+        	 *         writer is not writing
+        	 */
+        	long blockedNanos() {
+        		long started = writeStarted;
+        		return started == 0 ? 0 : System.nanoTime() - started;
+        	}
+
+        	@Override
+        	public void run() {
+        		try {
+        			while (true) {
+        				int count = outbound.drainTo(batch);
+        				if (count == 0) {
+        					writerScheduled.set(false);
+        					// a producer may have queued after the drain but before the reset
+        					if (outbound.isEmpty() || !writerScheduled.compareAndSet(false, true)) return;
+        					continue;
+        				}
+
+        				int length = 0;
+        				for (int i = 0; i < count; i++) length += batch[i].remaining();
+        				if (length > buffer.length) buffer = new byte[Math.max(length, buffer.length * 2)];
+
+        				int offset = 0;
+        				for (int i = 0; i < count; i++) {
+        					int remaining = batch[i].remaining();
+        					batch[i].get(buffer, offset, remaining);
+        					offset += remaining;
+        					batch[i] = null;
+        				}
+        				writeStarted = System.nanoTime();
+        				try {
+        					outToClient.write(buffer, 0, length);
+        				} finally {
+        					writeStarted = 0;
+        				}
+        			}
+        		} catch (IOException e) {
+        			writerScheduled.set(false);
+        			HandleClient.this.close();
+        		}
+        	}
+        }
     }
+}
+
+	/**
+	 * Protocol state of a single client connection. The session decodes the
+	 * line based commands ({@code !login}, {@code !send}, ...) independently
+	 * of the transport, so the blocking {@link TCPServer} and the
+	 * {@link NioTCPServer} behave exactly the same.
+	 */
+	class ClientSession {
+
+		private final ClientConnection connection;
+		private volatile String username = "";
+		private volatile boolean isLoggedIn = false;
+		private volatile boolean closed = false;
+		// guarded by this
+		private boolean loginPending = false;
+		private final Queue<String> deferred = new ArrayDeque<String>();
+		private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+		// the last naming call of this session, guarded by this
+		private CompletableFuture<?> namingTail = CompletableFuture.completedFuture(null);
+		private final AtomicInteger pendingNaming = new AtomicInteger();
+
+		ClientSession(ClientConnection connection) {
+			this.connection = connection;
+		}
+
+		String getUsername() {
+			return username;
+		}
+
+		/**
+		 * Handles a single command line received from the client.
+		 *
+		 * @param line
+		 *            the received line without line terminator
+		 * @throws IOException
+		 *             if the reply cannot be sent or the nameserver is not
+		 *             reachable; the connection should be dropped then
+		 */
+		synchronized void handleCommand(String line) throws IOException {
+			if (loginPending) {
+				// keep the order of pipelined commands
+				if (deferred.size() < MAX_DEFERRED_COMMANDS) {
+					deferred.add(line);
+				} else {
+					this.sendToClient("Login in progress, please wait.");
+				}
+				return;
+			}
+
+			String command = line.trim();
+
+			if (!isLoggedIn) {
+				this.login(command);
+				return;
+			}
+
+			if (command.indexOf("!send #") == 0) {
+				this.sendToRoom(command.substring("!send #".length()));
+				return;
+			}
+
+			if (command.indexOf("!send ") == 0) {
+				command = command.replace("!send ", "");
+				new GlobalChatMessage(command, username).run();
+				return;
+			}
+
+			if (command.indexOf("!join ") == 0) {
+				String room = roomName(command.substring("!join ".length()));
+				if (room.isEmpty() || room.indexOf(' ') >= 0) {
+					this.sendToClient("Invalid room name.");
+				} else if (rooms.join(room, this)) {
+					joinedRooms.add(room);
+					this.sendToClient("Joined #" + room + ".");
+				} else {
+					this.sendToClient("You already joined #" + room + ".");
+				}
+				return;
+			}
+
+			if (command.indexOf("!leave ") == 0) {
+				String room = roomName(command.substring("!leave ".length()));
+				if (rooms.leave(room, this)) {
+					joinedRooms.remove(room);
+					this.sendToClient("Left #" + room + ".");
+				} else {
+					this.sendToClient("You are not a member of #" + room + ".");
+				}
+				return;
+			}
+
+			if (command.indexOf("!register ") == 0) {
+				String[] parts = command.split(" ");
+
+				final String address = parts[1];
+				this.naming(() -> naming.register(username, address), (done, error) -> {
+					if (error != null) this.reply(registerError(error));
+				});
+				return;
+			}
+
+			if (command.indexOf("!lookup ") == 0) {
+				String[] parts = command.split("\\s+");
+				if (parts.length > 2) {
+					this.lookupAll(Arrays.asList(parts).subList(1, parts.length));
+					return;
+				}
+				final String name = parts[1];
+				this.naming(() -> naming.lookup(name), (address, error) ->
+						this.reply(error == null ? address : lookupError(error)));
+				return;
+			}
+
+			if (command.indexOf("!lookupSilent ") == 0) {
+				String[] parts = command.split(" ");
+				final String name = parts[1];
+				this.naming(() -> naming.lookup(name), (address, error) ->
+						this.reply("!lookupResult " + (error == null ? address : "error")));
+				return;
+			}
+
+			if (command.equals("!lastMsg")) {
+				MessageHistory.Entry latest = history.latest();
+				this.sendToClient(latest == null ? "No message received !" : latest.sender + ": " + latest.message);
+				return;
+			}
+
+			if (command.equals("!history") || command.indexOf("!history ") == 0) {
+				this.history(command.substring("!history".length()).trim());
+				return;
+			}
+
+			if (command.equals("!logout")) {
+				this.sendToClient("Successfully logged out.");
+				this.logout();
+				return;
+			}
+
+			if (command.equals("!exit")) {
+				this.logout();
+				connection.close();
+				return;
+			}
+
+			this.sendToClient("Invalid command!");
+		}
+
+		/**
+		 * Starts verifying the credentials on the {@link Authenticator}. The
+		 * reply is sent once the verification completed; commands received
+		 * meanwhile are deferred until then.
+		 */
+		private void login(String command) throws IOException {
+			if (command.indexOf("!login") == 0) {
+				final String[] parts = command.split(" ");
+				if (parts.length != 3) {
+					this.sendToClient("Wrong username or password.");
+					return;
+				}
+
+				CompletableFuture<Boolean> verification;
+				try {
+					verification = authenticator.verify(parts[1], parts[2]);
+				} catch (RejectedExecutionException e) {
+					this.sendToClient("Server busy, please try again later.");
+					return;
+				}
+				loginPending = true;
+				verification.whenComplete((valid, error) -> this.loginCompleted(parts[1], error == null && valid));
+			} else {
+				this.sendToClient("You are not logged in. Please use !login first.");
+			}
+		}
+
+		private synchronized void loginCompleted(String username, boolean valid) {
+			loginPending = false;
+			if (closed) {
+				deferred.clear();
+				return;
+			}
+			try {
+				if (valid) {
+					this.loggedIn(username);
+				} else {
+					this.sendToClient("Wrong username or password.");
+				}
+				String line;
+				while (!loginPending && (line = deferred.poll()) != null) {
+					this.handleCommand(line);
+				}
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+
+		private void loggedIn(String username) throws IOException {
+			if (closed) return;
+			this.username = username;
+			this.isLoggedIn = true;
+			this.sendToClient("Successfully logged in.");
+			loggedInUsers.login(username, this);
+			// the connection may have been closed while registering
+			if (closed) this.logout();
+		}
+
+		private void logout() {
+			if (isLoggedIn) {
+				loggedInUsers.logout(username, this);
+			}
+			for (String room : joinedRooms) {
+				rooms.leave(room, this);
+			}
+			joinedRooms.clear();
+			isLoggedIn = false;
+		}
+
+		/**
+		 * Replies with one line {@code <name>: <address or error>} per
+		 * requested user, resolving all of them in one batch.
+		 */
+		private void lookupAll(final List<String> usernames) throws IOException {
+			this.naming(() -> naming.lookupAll(usernames), (results, error) -> {
+				if (error != null) {
+					this.reply(lookupError(error));
+					return;
+				}
+				StringBuilder reply = new StringBuilder();
+				for (Map.Entry<String, BatchResult> result : results.entrySet()) {
+					if (reply.length() > 0) reply.append('\n');
+					reply.append(result.getKey()).append(": ");
+					if (result.getValue().isSuccess()) {
+						reply.append(result.getValue().getValue());
+					} else {
+						reply.append(lookupError(result.getValue().getError()));
+					}
+				}
+				this.reply(reply.toString());
+			});
+		}
+
+		/**
+		 * Starts a naming call once the previous naming calls of this session
+		 * are answered, so the replies arrive in the order of the commands
+		 * even though the calls run on the {@link NamingService}. Must be
+		 * called holding the lock of the session.
+		 *
+		 * @param call
+		 *            starts the naming call
+		 * @param reply
+		 *            handles the result of the call
+		 */
+		private <T> void naming(final Supplier<CompletableFuture<T>> call, final BiConsumer<T, Throwable> reply)
+				throws IOException {
+			if (pendingNaming.incrementAndGet() > MAX_DEFERRED_COMMANDS) {
+				pendingNaming.decrementAndGet();
+				this.sendToClient("Server busy, please try again later.");
+				return;
+			}
+			namingTail = namingTail.handle((result, error) -> null)
+					.thenCompose(previous -> call.get())
+					.whenComplete((result, error) -> {
+						pendingNaming.decrementAndGet();
+						reply.accept(result, error);
+					});
+		}
+
+		/**
+		 * Sends the reply of a naming call that completed on the
+		 * {@link NamingService}, unless the connection was closed meanwhile.
+		 */
+		private void reply(String msg) {
+			if (closed) return;
+			try {
+				this.sendToClient(msg);
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+
+		/**
+		 * Replies with the kept public messages, one per line and prefixed
+		 * with their sequence number.
+		 *
+		 * @param args
+		 *            empty, a number of messages or {@code since <seq>}
+		 */
+		private void history(String args) throws IOException {
+			List<MessageHistory.Entry> entries;
+			try {
+				if (args.isEmpty()) {
+					entries = history.last(DEFAULT_HISTORY_COUNT);
+				} else if (args.indexOf("since ") == 0) {
+					entries = history.since(Long.parseLong(args.substring("since ".length()).trim()));
+				} else {
+					entries = history.last(Integer.parseInt(args));
+				}
+			} catch (NumberFormatException e) {
+				this.sendToClient("Usage: !history [<count>|since <sequence>]");
+				return;
+			}
 
+			if (entries.isEmpty()) {
+				this.sendToClient("No messages in history.");
+				return;
+			}
+			StringBuilder reply = new StringBuilder();
+			for (MessageHistory.Entry entry : entries) {
+				if (reply.length() > 0) reply.append('\n');
+				reply.append(entry);
+			}
+			this.sendToClient(reply.toString());
+		}
+
+		/**
+		 * Publishes a message to the members of a room.
+		 *
+		 * @param roomAndMessage
+		 *            the room name followed by a space and the message
+		 */
+		private void sendToRoom(String roomAndMessage) throws IOException {
+			int separator = roomAndMessage.indexOf(' ');
+			if (separator <= 0) {
+				this.sendToClient("Invalid command!");
+				return;
+			}
+			String room = roomAndMessage.substring(0, separator);
+			if (!joinedRooms.contains(room)) {
+				this.sendToClient("You are not a member of #" + room + ".");
+				return;
+			}
+			String line = "#" + room + " " + username + ": " + roomAndMessage.substring(separator + 1);
+			new GlobalChatMessage(line, username, rooms.members(room)).run();
+		}
+
+		/**
+		 * Called by the transport once the connection is gone.
+		 */
+		void closed() {
+			closed = true;
+			this.logout();
+		}
+
+		private String lookupError(Throwable error) {
+			Throwable cause = NamingService.cause(error);
+			if (cause instanceof InvalidDomainException) return "Invalid domain! No entry exits for this user.";
+			if (cause instanceof UnknownUsernameException) return "No entry exits for this user.";
+			if (cause instanceof RejectedExecutionException) return "Server busy, please try again later.";
+			return "Nameserver not reachable, please try again later.";
+		}
+
+		private String registerError(Throwable error) {
+			Throwable cause = NamingService.cause(error);
+			if (cause instanceof AlreadyRegisteredException || cause instanceof InvalidDomainException) {
+				return "Registration failed: " + cause.getMessage();
+			}
+			if (cause instanceof RejectedExecutionException) return "Server busy, please try again later.";
+			return "Nameserver not reachable, please try again later.";
+		}
+
+		private String roomName(String name) {
+			name = name.trim();
+			return name.startsWith("#") ? name.substring(1) : name;
+		}
+
+		void sendToClient(String msg) throws IOException {
+			connection.send(ByteBuffer.wrap((msg + "\n").getBytes(CHARSET)));
+		}
+
+		/**
+		 * Queues an already encoded message that is shared with other
+		 * sessions. Only a duplicate view is queued, the content is never
+		 * copied or modified.
+		 */
+		void deliver(ByteBuffer shared) throws IOException {
+			connection.send(shared.duplicate());
+		}
+	}
+
+	/**
+	 * Delivers a public message to every online user, or to the members of a
+	 * room, except the sender. The line is encoded once into a read-only
+	 * buffer; recipients only get a duplicate view of it, so the payload is
+	 * not copied per user.
+	 */
     class GlobalChatMessage implements Runnable {
-    	private String message;
-    	private String sender;
+    	private final ByteBuffer encoded;
+    	private final String sender;
+    	private final ClientSession[] recipients;
 
         public GlobalChatMessage(String s, String sender) {
-        	lastMessage = sender + ": " + s;
-            this.message = s;
+        	this(sender + ": " + s, sender, null);
+        	if (journal == null) {
+        		history.append(sender, s);
+        	} else {
+        		try {
+        			journal.append(history, sender, s);
+        		} catch (IOException e) {
+        			e.printStackTrace();
+        		}
+        	}
+        }
+
+        /**
+         * @param line
+         *            the complete line to deliver
+         * @param sender
+         *            the sending user, who does not receive the line
+         * @param recipients
+         *            the receiving sessions, {@code null} for all online users
+         */
+        GlobalChatMessage(String line, String sender, ClientSession[] recipients) {
+        	this.encoded = ByteBuffer.wrap((line + "\n").getBytes(CHARSET)).asReadOnlyBuffer();
             this.sender = sender;
+            this.recipients = recipients;
         }
 
         @Override
         public void run() {
-            for (Entry<String, Socket> user : loggedInUsers.entrySet()) {
+            for (ClientSession user : recipients != null ? recipients : loggedInUsers.snapshot()) {
             	//Do not send message to sender
-            	if (user.getKey() != null && user.getKey().equals(sender)) continue;
+            	if (user.getUsername().equals(sender)) continue;
                 
                     try {
-                    	new DataOutputStream(user.getValue().getOutputStream()).writeBytes(sender + ": " + message + "\n");
+                    	user.deliver(encoded);
                     } catch (IOException e) {
-                        System.out.println("Its in Catch");
+                        // recipient disconnected meanwhile
                     }
             }
         }
     }
-}
 
 }
@@ -0,0 +1,32 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The transport a {@link Chatserver.ClientSession} talks through. Implemented
+ * by the blocking socket handler as well as by the NIO front end.
+ */
+interface ClientConnection {
+
+	/**
+	 * Queues the given encoded message for the client. The message has to
+	 * contain the line terminator already. The call never blocks on the
+	 * socket; the connection's writer sends queued messages in batches.
+	 *
+	 * @param message
+	 *            the encoded message
+	 * @return {@code false} if the outbound queue is full and the message
+	 *         was dropped
+	 * @throws IOException
+	 *             if the connection is closed
+	 */
+	public boolean send(ByteBuffer message) throws IOException;
+
+	/**
+	 * Closes the connection. Closing an already closed connection has no
+	 * effect.
+	 */
+	public void close();
+
+}
@@ -0,0 +1,43 @@
+package chatserver;
+
+import java.io.Closeable;
+
+/**
+ * The accounts of a {@link Chatserver}, sorted by username.
+ * <p/>
+ * Besides looking up the credential of a single user, a store gives indexed
+ * access to the usernames in ascending order, which {@code !users} uses to
+ * list ranges of users without sorting.
+ */
+interface CredentialStore extends Closeable {
+
+	/**
+	 * @return the number of accounts
+	 */
+	int size();
+
+	/**
+	 * @return the username at the given position in ascending order
+	 */
+	String username(int index);
+
+	/**
+	 * @return the position of the first username that is not smaller than
+	 *         the given prefix, {@link #size()} if there is none
+	 */
+	int first(String prefix);
+
+	/**
+	 * @return the stored credential of the given user or {@code null} if the
+	 *         user does not exist
+	 */
+	String credential(String username);
+
+	/**
+	 * @return a store that does not change while it is used, for iterating
+	 *         by index
+	 */
+	default CredentialStore snapshot() {
+		return this;
+	}
+}
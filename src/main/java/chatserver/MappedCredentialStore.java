@@ -0,0 +1,204 @@
+package chatserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import util.Config;
+
+/**
+ * Credential store backed by a compiled, memory-mapped file.
+ * <p/>
+ * The file starts with the header {@code [int magic][int count]}, followed
+ * by a table of {@code count} record offsets and the records
+ * {@code [short nameLength][name][short credentialLength][credential]}, all
+ * UTF-8 and sorted by the bytes of the name. Lookups binary-search the
+ * offset table and compare names directly in the mapping, so opening the
+ * store takes constant time and the accounts never occupy the heap.
+ * <p/>
+ * Run {@link #main(String[])} to compile a {@code user.properties} file.
+ */
+class MappedCredentialStore implements CredentialStore {
+
+	private static final int MAGIC = 0x43555352;
+	private static final int HEADER_SIZE = 4 + 4;
+
+	private final FileChannel channel;
+	private final ByteBuffer mapping;
+	private final int count;
+
+	/**
+	 * Maps the given compiled credential file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or is not a credential file
+	 */
+	MappedCredentialStore(Path file) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is not a credential file.");
+			}
+			this.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (mapping.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a credential file.");
+			}
+			this.count = mapping.getInt(4);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public String username(int index) {
+		return string(offset(index));
+	}
+
+	@Override
+	public int first(String prefix) {
+		byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (compareName(middle, key) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	public String credential(String username) {
+		byte[] key = username.getBytes(StandardCharsets.UTF_8);
+		int index = first(username);
+		if (index == count || compareName(index, key) != 0) return null;
+
+		int offset = offset(index);
+		return string(offset + 2 + (mapping.getShort(offset) & 0xffff));
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private int offset(int index) {
+		return mapping.getInt(HEADER_SIZE + 4 * index);
+	}
+
+	/**
+	 * Compares the name of the given record with the key by unsigned bytes.
+	 */
+	private int compareName(int index, byte[] key) {
+		int offset = offset(index);
+		int length = mapping.getShort(offset) & 0xffff;
+		int common = Math.min(length, key.length);
+		for (int i = 0; i < common; i++) {
+			int difference = (mapping.get(offset + 2 + i) & 0xff) - (key[i] & 0xff);
+			if (difference != 0) return difference;
+		}
+		return length - key.length;
+	}
+
+	private String string(int offset) {
+		byte[] bytes = new byte[mapping.getShort(offset) & 0xffff];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = mapping.get(offset + 2 + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the given accounts as a compiled credential file.
+	 *
+	 * @param accounts
+	 *            the credentials by username
+	 * @param file
+	 *            the file to create or replace
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	static void write(Map<String, String> accounts, Path file) throws IOException {
+		Map<byte[], byte[]> sorted = new TreeMap<byte[], byte[]>(new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] a, byte[] b) {
+				int common = Math.min(a.length, b.length);
+				for (int i = 0; i < common; i++) {
+					int difference = (a[i] & 0xff) - (b[i] & 0xff);
+					if (difference != 0) return difference;
+				}
+				return a.length - b.length;
+			}
+		});
+		for (Map.Entry<String, String> account : accounts.entrySet()) {
+			byte[] name = account.getKey().getBytes(StandardCharsets.UTF_8);
+			byte[] credential = account.getValue().getBytes(StandardCharsets.UTF_8);
+			if (name.length > 0xffff || credential.length > 0xffff) {
+				throw new IOException("Account " + account.getKey() + " is too long.");
+			}
+			sorted.put(name, credential);
+		}
+
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(sorted.size());
+			long offset = HEADER_SIZE + 4L * sorted.size();
+			for (Map.Entry<byte[], byte[]> account : sorted.entrySet()) {
+				if (offset > Integer.MAX_VALUE) throw new IOException("Too many accounts.");
+				out.writeInt((int) offset);
+				offset += 2 + account.getKey().length + 2 + account.getValue().length;
+			}
+			for (Map.Entry<byte[], byte[]> account : sorted.entrySet()) {
+				out.writeShort(account.getKey().length);
+				out.write(account.getKey());
+				out.writeShort(account.getValue().length);
+				out.write(account.getValue());
+			}
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Compiles the accounts of a properties file into a credential file.
+	 *
+	 * @param args
+	 *            the name of the properties file in the classpath (e.g.
+	 *            {@code user}) and the path of the credential file to write
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: MappedCredentialStore <properties name> <credential file>");
+			return;
+		}
+		PropertiesCredentialStore source = new PropertiesCredentialStore(new Config(args[0]));
+		Map<String, String> accounts = new TreeMap<String, String>();
+		for (int i = 0; i < source.size(); i++) {
+			String username = source.username(i);
+			accounts.put(username, source.credential(username));
+		}
+		Path file = Paths.get(args[1]);
+		write(accounts, file);
+		System.out.println("Wrote " + accounts.size() + " accounts to " + file + ".");
+	}
+}
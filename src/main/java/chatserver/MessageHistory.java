@@ -0,0 +1,136 @@
+package chatserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last public messages of a {@link Chatserver}, kept in a ring buffer
+ * with a fixed number of slots.
+ * <p/>
+ * Every message gets a sequence number; the slot of a message is its
+ * sequence number modulo the capacity. Writers claim a sequence number with
+ * a single atomic increment and publish the immutable {@link Entry} with a
+ * volatile store, so neither writers nor readers take a lock. A reader that
+ * finds a slot holding another sequence number than expected (not yet
+ * written or already overwritten) simply skips it.
+ */
+class MessageHistory {
+
+	/**
+	 * A single public message.
+	 */
+	static class Entry {
+		final long sequence;
+		final long timestamp;
+		final String sender;
+		final String message;
+
+		Entry(long sequence, long timestamp, String sender, String message) {
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.sender = sender;
+			this.message = message;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + sequence + "] " + sender + ": " + message;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final AtomicLong nextSequence = new AtomicLong(1);
+
+	/**
+	 * @param capacity
+	 *            the number of kept messages, rounded up to a power of two
+	 */
+	MessageHistory(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.slots = new AtomicReferenceArray<Entry>(size);
+		this.mask = size - 1;
+	}
+
+	int capacity() {
+		return slots.length();
+	}
+
+	/**
+	 * Appends a message.
+	 *
+	 * @return the stored entry carrying the sequence number of the message
+	 */
+	Entry append(String sender, String message) {
+		long sequence = nextSequence.getAndIncrement();
+		Entry entry = new Entry(sequence, System.currentTimeMillis(), sender, message);
+		slots.set(index(sequence), entry);
+		return entry;
+	}
+
+	/**
+	 * Puts back a message read from the journal. Following messages are
+	 * numbered after the highest restored sequence number.
+	 */
+	void restore(Entry entry) {
+		slots.set(index(entry.sequence), entry);
+		long next = entry.sequence + 1;
+		long current;
+		while ((current = nextSequence.get()) < next && !nextSequence.compareAndSet(current, next)) {
+			// retry
+		}
+	}
+
+	/**
+	 * @return the newest message or {@code null} if there is none
+	 */
+	Entry latest() {
+		long last = nextSequence.get() - 1;
+		for (long sequence = last; sequence > 0 && sequence > last - capacity(); sequence--) {
+			Entry entry = get(sequence);
+			if (entry != null) return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * @param count
+	 *            the maximum number of messages
+	 * @return the newest messages, oldest first
+	 */
+	List<Entry> last(int count) {
+		long last = nextSequence.get() - 1;
+		return range(last - Math.min(count, capacity()) + 1, last);
+	}
+
+	/**
+	 * @param sequence
+	 *            the sequence number the caller has seen last
+	 * @return the kept messages newer than the given sequence number, oldest
+	 *         first
+	 */
+	List<Entry> since(long sequence) {
+		long last = nextSequence.get() - 1;
+		return range(Math.max(sequence + 1, last - capacity() + 1), last);
+	}
+
+	private List<Entry> range(long from, long to) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (long sequence = Math.max(1, from); sequence <= to; sequence++) {
+			Entry entry = get(sequence);
+			if (entry != null) entries.add(entry);
+		}
+		return entries;
+	}
+
+	private Entry get(long sequence) {
+		Entry entry = slots.get(index(sequence));
+		return entry != null && entry.sequence == sequence ? entry : null;
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence & mask);
+	}
+}
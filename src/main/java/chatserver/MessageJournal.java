@@ -0,0 +1,279 @@
+package chatserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the public messages of a {@link Chatserver}.
+ * <p/>
+ * Messages are appended to memory-mapped segment files, so appending is a
+ * memory copy and never a syscall. A background task forces dirty segments
+ * to disk every {@code flushInterval} milliseconds (group commit); messages
+ * accepted since the last flush may be lost on a crash of the machine, but
+ * not on a crash of the process.
+ * <p/>
+ * A segment is named after the sequence number of its first message and
+ * starts with a header {@code [int magic][long firstSequence]}, followed by
+ * records
+ * {@code [int length][long sequence][long timestamp][short senderLength][sender][message][int crc32]}
+ * where sender and message are UTF-8 and length covers everything between
+ * the length field and the checksum. Unused space is zero, so a length of 0
+ * marks the end of a segment.
+ */
+class MessageJournal implements Closeable {
+
+	private static final int MAGIC = 0x434a4e4c;
+	private static final int HEADER_SIZE = 4 + 8;
+	private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 2 + 4;
+	private static final String PREFIX = "messages-";
+	private static final String SUFFIX = ".journal";
+
+	private final Path directory;
+	private final int segmentSize;
+	private final ScheduledExecutorService flusher;
+
+	private FileChannel channel;
+	private MappedByteBuffer segment;
+	// the previous segment if it was rolled over before its last flush
+	private MappedByteBuffer retired;
+	private boolean dirty;
+
+	/**
+	 * Opens the journal in the given directory, creating the directory if
+	 * necessary.
+	 *
+	 * @param directory
+	 *            the directory holding the segment files
+	 * @param segmentSize
+	 *            the size of a segment file in bytes
+	 * @param flushIntervalMillis
+	 *            the interval of the group commit
+	 * @throws IOException
+	 *             if the directory cannot be created
+	 */
+	MessageJournal(Path directory, int segmentSize, long flushIntervalMillis) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+		this.flusher = Executors.newSingleThreadScheduledExecutor();
+		this.flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Loads the newest messages into the given history and positions the
+	 * journal behind the last valid record. Only as many segments are read
+	 * as are needed to fill the history, so the startup time does not grow
+	 * with the size of the journal.
+	 *
+	 * @param history
+	 *            the history to fill
+	 * @return the number of restored messages
+	 * @throws IOException
+	 *             if a segment cannot be read
+	 */
+	synchronized int replay(MessageHistory history) throws IOException {
+		List<Path> segments = this.listSegments();
+		if (segments.isEmpty()) return 0;
+
+		LinkedList<MessageHistory.Entry> entries = new LinkedList<MessageHistory.Entry>();
+		for (int i = segments.size() - 1; i >= 0 && entries.size() < history.capacity(); i--) {
+			boolean newest = i == segments.size() - 1;
+			FileChannel file = FileChannel.open(segments.get(i), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+
+			List<MessageHistory.Entry> read = new ArrayList<MessageHistory.Entry>();
+			if (buffer.getInt() == MAGIC) {
+				buffer.getLong();
+				MessageHistory.Entry entry;
+				while ((entry = readRecord(buffer)) != null) {
+					read.add(entry);
+				}
+			} else {
+				buffer.position(0);
+			}
+			entries.addAll(0, read);
+
+			if (newest && buffer.position() > 0) {
+				// continue appending behind the last valid record
+				channel = file;
+				segment = buffer;
+			} else {
+				file.close();
+			}
+		}
+
+		for (MessageHistory.Entry entry : entries) {
+			history.restore(entry);
+		}
+		return entries.size();
+	}
+
+	/**
+	 * Appends a new message to the history and to the journal. The sequence
+	 * number is assigned under the lock of the journal, so the records are
+	 * written in the order of their sequence numbers. Does not wait for the
+	 * message to reach the disk.
+	 *
+	 * @param history
+	 *            the history assigning the sequence number
+	 * @return the stored entry
+	 * @throws IOException
+	 *             if a new segment cannot be created; the message is kept in
+	 *             the history nevertheless
+	 */
+	synchronized MessageHistory.Entry append(MessageHistory history, String sender, String message) throws IOException {
+		MessageHistory.Entry entry = history.append(sender, message);
+		this.append(entry);
+		return entry;
+	}
+
+	/**
+	 * Appends a message. Does not wait for the message to reach the disk.
+	 * Callers that number messages concurrently use
+	 * {@link #append(MessageHistory, String, String)} instead.
+	 *
+	 * @param entry
+	 *            the message to append
+	 * @throws IOException
+	 *             if a new segment cannot be created
+	 */
+	synchronized void append(MessageHistory.Entry entry) throws IOException {
+		byte[] sender = entry.sender.getBytes(StandardCharsets.UTF_8);
+		byte[] message = entry.message.getBytes(StandardCharsets.UTF_8);
+		int length = RECORD_OVERHEAD - 8 + sender.length + message.length;
+
+		if (length + 8 > segmentSize - HEADER_SIZE) {
+			throw new IOException("Message " + entry.sequence + " does not fit into a journal segment.");
+		}
+		// keep 4 zero bytes at the end as terminator
+		if (segment == null || segment.remaining() < length + 8 + 4) {
+			this.roll(entry.sequence);
+		}
+
+		int start = segment.position();
+		segment.putInt(length);
+		segment.putLong(entry.sequence);
+		segment.putLong(entry.timestamp);
+		segment.putShort((short) sender.length);
+		segment.put(sender);
+		segment.put(message);
+
+		CRC32 crc = new CRC32();
+		ByteBuffer record = segment.duplicate();
+		record.position(start + 4).limit(start + 4 + length);
+		crc.update(record);
+		segment.putInt((int) crc.getValue());
+		dirty = true;
+	}
+
+	/**
+	 * Forces the written records to disk. The segments are forced without
+	 * holding the lock, so appends do not wait for the disk.
+	 */
+	void flush() {
+		MappedByteBuffer current;
+		MappedByteBuffer previous;
+		synchronized (this) {
+			current = dirty ? segment : null;
+			previous = retired;
+			retired = null;
+			// appends during the force mark the segment dirty again
+			dirty = false;
+		}
+		if (previous != null) previous.force();
+		if (current != null) current.force();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		flusher.shutdown();
+		this.flush();
+		if (channel != null) channel.close();
+		segment = null;
+	}
+
+	private void roll(long firstSequence) throws IOException {
+		if (dirty && segment != null) {
+			// rolled over twice within one flush interval: force the older one now
+			if (retired != null) retired.force();
+			retired = segment;
+		}
+		// the mapping stays valid after the channel is closed
+		if (channel != null) channel.close();
+
+		Path file = directory.resolve(String.format("%s%020d%s", PREFIX, firstSequence, SUFFIX));
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		segment.putInt(MAGIC);
+		segment.putLong(firstSequence);
+		dirty = true;
+	}
+
+	/**
+	 * Reads the record at the buffer's position. On success the position is
+	 * moved behind the record, otherwise it is left at the record's start.
+	 *
+	 * @return the record or {@code null} at the end of the segment or at a
+	 *         torn record
+	 */
+	private MessageHistory.Entry readRecord(ByteBuffer buffer) {
+		int start = buffer.position();
+		if (buffer.remaining() < 4) return null;
+		int length = buffer.getInt();
+		if (length < RECORD_OVERHEAD - 8 || length + 4 > buffer.remaining()) {
+			buffer.position(start);
+			return null;
+		}
+
+		CRC32 crc = new CRC32();
+		ByteBuffer record = buffer.duplicate();
+		record.limit(start + 4 + length);
+		crc.update(record);
+		if ((int) crc.getValue() != buffer.getInt(start + 4 + length)) {
+			buffer.position(start);
+			return null;
+		}
+
+		long sequence = buffer.getLong();
+		long timestamp = buffer.getLong();
+		byte[] sender = new byte[buffer.getShort() & 0xffff];
+		buffer.get(sender);
+		byte[] message = new byte[length - (RECORD_OVERHEAD - 8) - sender.length];
+		buffer.get(message);
+		buffer.getInt();
+
+		return new MessageHistory.Entry(sequence, timestamp,
+				new String(sender, StandardCharsets.UTF_8), new String(message, StandardCharsets.UTF_8));
+	}
+
+	private List<Path> listSegments() throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path path : stream) {
+				segments.add(path);
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+}
@@ -0,0 +1,351 @@
+package chatserver;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import nameserver.BatchResult;
+import nameserver.INameserver;
+import nameserver.INameserverForChatserver;
+import nameserver.exceptions.AlreadyRegisteredException;
+import nameserver.exceptions.InvalidDomainException;
+import nameserver.exceptions.UnknownUsernameException;
+import util.BloomFilter;
+import util.Config;
+import util.TtlCache;
+
+/**
+ * Resolves usernames such as {@code alice.vienna.at} through the nameserver
+ * tree and caches the results.
+ * <p/>
+ * Two caches are kept: zone names to the stubs of their nameservers
+ * (delegations) and full usernames to addresses. A lookup of a cached
+ * username needs no remote call at all; otherwise a single
+ * {@link INameserverForChatserver#resolve(String)} is sent to the deepest
+ * cached zone, or to the root, which resolves the name recursively. If a
+ * cached stub fails with a {@link RemoteException}, its entry is dropped
+ * and the name is resolved at the root once more. {@link #lookupAll(Collection)} groups the names that
+ * are not cached by zone and asks each zone's nameserver once.
+ * <p/>
+ * Failures are cached as well, for a shorter time: unknown usernames and
+ * unknown zones, so that every name below an unknown zone fails at once.
+ * Names with empty labels are rejected without asking anybody, and so are
+ * names whose top-level zone is not in a {@link BloomFilter} of the zones
+ * of the root. The filter is refreshed periodically, and early before it
+ * rejects a name if it is older than the negative time to live.
+ * <p/>
+ * Zones that are looked up often are mirrored by a {@link ZoneMirror} and
+ * answered from memory.
+ */
+class NameResolver {
+
+	private final INameserver root;
+	private final TtlCache<String, INameserverForChatserver> zones;
+	private final TtlCache<String, String> addresses;
+	private final TtlCache<String, String> unknownUsers;
+	private final TtlCache<String, String> unknownZones;
+	private final ScheduledExecutorService refresher;
+	private final ZoneMirror mirror;
+	private final long negativeTtlNanos;
+	private volatile BloomFilter topLevelZones;
+	private volatile long refreshedAt;
+
+	NameResolver(INameserver root, Config config) {
+		this.root = root;
+		int size = config.getInt("lookup.cache.size", 10000);
+		this.zones = new TtlCache<String, INameserverForChatserver>(size,
+				config.getInt("lookup.cache.zone.ttl", 300000), TimeUnit.MILLISECONDS);
+		this.addresses = new TtlCache<String, String>(size,
+				config.getInt("lookup.cache.user.ttl", 30000), TimeUnit.MILLISECONDS);
+		int negativeTtl = config.getInt("lookup.cache.negative.ttl", 5000);
+		this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+		this.unknownUsers = new TtlCache<String, String>(size, negativeTtl, TimeUnit.MILLISECONDS);
+		this.unknownZones = new TtlCache<String, String>(size, negativeTtl, TimeUnit.MILLISECONDS);
+
+		this.refreshZones();
+		long refresh = config.getInt("lookup.zones.refresh", 30000);
+		this.refresher = Executors.newSingleThreadScheduledExecutor();
+		this.refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refreshZones();
+			}
+		}, refresh, refresh, TimeUnit.MILLISECONDS);
+
+		this.mirror = new ZoneMirror(new ZoneMirror.Locator() {
+			@Override
+			public INameserverForChatserver locate(String zone) throws RemoteException, InvalidDomainException {
+				// labels of a name in the zone, without the name itself
+				return nameserver(("." + zone).split("\\.", -1), true);
+			}
+		}, config.getInt("lookup.mirror.threshold", 50), config.getInt("lookup.mirror.zones", 16),
+				config.getInt("lookup.mirror.interval", 1000), refresher);
+	}
+
+	/**
+	 * Rebuilds the filter of top-level zones from the root. Keeps the
+	 * previous filter if the root is not reachable; a failed attempt counts
+	 * as a refresh as well, so that rejected names do not each call the
+	 * unreachable root.
+	 */
+	void refreshZones() {
+		refreshedAt = System.nanoTime();
+		try {
+			List<String> zones = root.listZones();
+			BloomFilter filter = new BloomFilter(Math.max(64, zones.size() * 2), 0.01);
+			for (String zone : zones) {
+				filter.add(zone);
+			}
+			topLevelZones = filter;
+		} catch (RemoteException e) {
+			// keep the previous filter
+		}
+	}
+
+	void close() {
+		refresher.shutdownNow();
+	}
+
+	/**
+	 * Registers the address of a user at the root nameserver.
+	 */
+	void register(String username, String address) throws RemoteException, AlreadyRegisteredException, InvalidDomainException {
+		root.registerUser(username, address);
+		unknownUsers.invalidate(username);
+		addresses.put(username, address);
+	}
+
+	/**
+	 * @return the address registered for the given user
+	 */
+	String lookup(String username) throws RemoteException, InvalidDomainException, UnknownUsernameException {
+		String address = addresses.get(username);
+		if (address != null) return address;
+
+		String[] labels = username.split("\\.", -1);
+		this.checkCached(username, labels);
+		if (labels.length > 1) {
+			String zone = zone(labels, 1);
+			address = mirror.lookup(zone, labels[0]);
+			if (address != null) return address;
+			mirror.hit(zone);
+		}
+
+		try {
+			return this.resolve(username, labels, true);
+		} catch (RemoteException e) {
+			// a cached delegation may point to a nameserver that is gone
+			this.invalidateZones(labels);
+			return this.resolve(username, labels, false);
+		}
+	}
+
+	/**
+	 * Looks up several users with one remote call per zone for the names
+	 * that are not cached.
+	 *
+	 * @return the outcome by username, in the order of the given names
+	 */
+	Map<String, BatchResult> lookupAll(Collection<String> usernames) {
+		Map<String, BatchResult> results = new LinkedHashMap<String, BatchResult>();
+		// zone -> (label in the zone -> username)
+		Map<String, Map<String, String>> byZone = new LinkedHashMap<String, Map<String, String>>();
+		Map<String, String[]> zoneLabels = new HashMap<String, String[]>();
+
+		for (String username : usernames) {
+			results.put(username, null);
+			String address = addresses.get(username);
+			if (address != null) {
+				results.put(username, BatchResult.success(address));
+				continue;
+			}
+			String[] labels = username.split("\\.", -1);
+			String zone = labels.length == 1 ? "" : zone(labels, 1);
+			try {
+				this.checkCached(username, labels);
+				if (labels.length > 1) {
+					address = mirror.lookup(zone, labels[0]);
+					if (address != null) {
+						results.put(username, BatchResult.success(address));
+						continue;
+					}
+					mirror.hit(zone);
+				}
+			} catch (InvalidDomainException | UnknownUsernameException e) {
+				results.put(username, BatchResult.failure(e));
+				continue;
+			}
+			Map<String, String> names = byZone.get(zone);
+			if (names == null) {
+				names = new LinkedHashMap<String, String>();
+				byZone.put(zone, names);
+				zoneLabels.put(zone, labels);
+			}
+			names.put(labels[0], username);
+		}
+
+		for (Map.Entry<String, Map<String, String>> zone : byZone.entrySet()) {
+			Map<String, String> names = zone.getValue();
+			String[] labels = zoneLabels.get(zone.getKey());
+			// a key set view is not serializable
+			List<String> batch = new ArrayList<String>(names.keySet());
+			Map<String, BatchResult> zoneResults;
+			try {
+				try {
+					zoneResults = this.nameserver(labels, true).lookupAll(batch);
+				} catch (RemoteException e) {
+					this.invalidateZones(labels);
+					zoneResults = this.nameserver(labels, false).lookupAll(batch);
+				}
+			} catch (RemoteException | InvalidDomainException e) {
+				for (String username : names.values()) {
+					results.put(username, BatchResult.failure(e));
+				}
+				continue;
+			}
+
+			for (Map.Entry<String, String> name : names.entrySet()) {
+				String username = name.getValue();
+				BatchResult result = zoneResults.get(name.getKey());
+				if (result == null) {
+					result = BatchResult.failure(new UnknownUsernameException("No result for '" + username + "'."));
+				} else if (result.isSuccess()) {
+					addresses.put(username, result.getValue());
+				} else if (result.getError() instanceof UnknownUsernameException) {
+					unknownUsers.put(username, result.getError().getMessage());
+				}
+				results.put(username, result);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Fails for names that are invalid or known to fail.
+	 */
+	private void checkCached(String username, String[] labels) throws InvalidDomainException, UnknownUsernameException {
+		this.check(username, labels);
+
+		String unknown = unknownUsers.get(username);
+		if (unknown != null) throw new UnknownUsernameException(unknown);
+		for (int i = 1; i < labels.length; i++) {
+			unknown = unknownZones.get(zone(labels, i));
+			if (unknown != null) throw new InvalidDomainException(unknown);
+		}
+	}
+
+	private void invalidateZones(String[] labels) {
+		for (int i = 1; i < labels.length; i++) {
+			zones.invalidate(zone(labels, i));
+		}
+	}
+
+	/**
+	 * Resolves the name with a single remote call: at the deepest cached
+	 * zone if there is one, otherwise recursively at the root.
+	 */
+	private String resolve(String username, String[] labels, boolean useCache)
+			throws RemoteException, InvalidDomainException, UnknownUsernameException {
+		INameserverForChatserver nameserver = root;
+		String name = username;
+		if (useCache) {
+			for (int i = 1; i < labels.length; i++) {
+				INameserverForChatserver cached = zones.get(zone(labels, i));
+				if (cached != null) {
+					nameserver = cached;
+					name = username.substring(0, username.length() - zone(labels, i).length() - 1);
+					break;
+				}
+			}
+		}
+
+		String address;
+		try {
+			address = nameserver.resolve(name);
+		} catch (UnknownUsernameException e) {
+			unknownUsers.put(username, e.getMessage());
+			throw e;
+		} catch (InvalidDomainException e) {
+			// whichever zone is missing, the user's own zone is unknown as well
+			if (labels.length > 1) unknownZones.put(zone(labels, 1), e.getMessage());
+			throw e;
+		}
+		addresses.put(username, address);
+		return address;
+	}
+
+	/**
+	 * @return the nameserver responsible for the first label of the name
+	 */
+	private INameserverForChatserver nameserver(String[] labels, boolean useCache)
+			throws RemoteException, InvalidDomainException {
+		INameserverForChatserver nameserver = root;
+		int next = labels.length - 1;
+
+		if (useCache) {
+			// the deepest known zone first
+			for (int i = 1; i < labels.length; i++) {
+				INameserverForChatserver cached = zones.get(zone(labels, i));
+				if (cached != null) {
+					nameserver = cached;
+					next = i - 1;
+					break;
+				}
+			}
+		}
+
+		for (int i = next; i > 0; i--) {
+			try {
+				nameserver = nameserver.getNameserver(labels[i]);
+			} catch (InvalidDomainException e) {
+				unknownZones.put(zone(labels, i), e.getMessage());
+				throw e;
+			}
+			zones.put(zone(labels, i), nameserver);
+		}
+		return nameserver;
+	}
+
+	/**
+	 * Rejects names that cannot exist without a remote call.
+	 */
+	private void check(String username, String[] labels) throws InvalidDomainException {
+		for (String label : labels) {
+			if (label.isEmpty()) {
+				throw new InvalidDomainException("'" + username + "' contains an empty label.");
+			}
+		}
+		if (labels.length == 1) return;
+		String topLevel = labels[labels.length - 1];
+		BloomFilter filter = topLevelZones;
+		if (filter != null && !filter.mightContain(topLevel)) {
+			// the zone may have been registered since the last refresh
+			if (System.nanoTime() - refreshedAt > negativeTtlNanos) {
+				this.refreshZones();
+				filter = topLevelZones;
+			}
+			if (!filter.mightContain(topLevel)) {
+				throw new InvalidDomainException("There is no zone " + topLevel + ".");
+			}
+		}
+	}
+
+	/**
+	 * @return the zone made of the labels from the given index on, e.g.
+	 *         {@code vienna.at} for index 1 of {@code alice.vienna.at}
+	 */
+	private static String zone(String[] labels, int from) {
+		StringBuilder zone = new StringBuilder(labels[from]);
+		for (int i = from + 1; i < labels.length; i++) {
+			zone.append('.').append(labels[i]);
+		}
+		return zone.toString();
+	}
+}
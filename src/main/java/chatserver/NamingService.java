@@ -0,0 +1,150 @@
+package chatserver;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import nameserver.BatchResult;
+import nameserver.exceptions.AlreadyRegisteredException;
+import nameserver.exceptions.InvalidDomainException;
+import util.Config;
+import util.ExecutorFactory;
+
+/**
+ * Runs the nameserver calls of the {@link NameResolver} on a dedicated
+ * bounded pool, so that a slow or hung nameserver never blocks a connection
+ * thread.
+ * <p/>
+ * Every call returns a {@link CompletableFuture} at once. The future fails
+ * with a {@link RejectedExecutionException} if too many calls are waiting,
+ * with a {@link TimeoutException} if the nameserver does not answer in time,
+ * and otherwise with the exception the synchronous call would have thrown.
+ * A call that times out is interrupted; a call blocked in an RMI read gives
+ * up its thread after the RMI response timeout, see
+ * {@link #limitResponseTime(Config)}.
+ */
+class NamingService {
+
+	private static final String RESPONSE_TIMEOUT = "sun.rmi.transport.tcp.responseTimeout";
+
+	private final NameResolver resolver;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService timer;
+	private final long timeoutMillis;
+
+	NamingService(NameResolver resolver, int threads, int queueCapacity, long timeoutMillis) {
+		this.resolver = resolver;
+		this.executor = ExecutorFactory.newBoundedPool(Math.max(1, threads), queueCapacity, "chatserver-naming");
+		this.timer = Executors.newSingleThreadScheduledExecutor();
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	static NamingService fromConfig(Config config, NameResolver resolver) {
+		return new NamingService(resolver,
+				config.getInt("naming.threads", 8),
+				config.getInt("naming.queue", 256),
+				config.getInt("naming.timeout", 5000));
+	}
+
+	/**
+	 * Sets the RMI response timeout of the process to the naming timeout,
+	 * unless it is set already, because an interrupt does not end a blocking
+	 * RMI read. RMI reads the property once, so this has to run before the
+	 * first remote call.
+	 */
+	static void limitResponseTime(Config config) {
+		int timeout = config.getInt("naming.timeout", 5000);
+		if (timeout > 0 && System.getProperty(RESPONSE_TIMEOUT) == null) {
+			System.setProperty(RESPONSE_TIMEOUT, Integer.toString(timeout));
+		}
+	}
+
+	CompletableFuture<String> lookup(final String username) {
+		return this.submit(new Call<String>() {
+			@Override
+			public String call() throws Exception {
+				return resolver.lookup(username);
+			}
+		});
+	}
+
+	CompletableFuture<Map<String, BatchResult>> lookupAll(final List<String> usernames) {
+		return this.submit(new Call<Map<String, BatchResult>>() {
+			@Override
+			public Map<String, BatchResult> call() {
+				return resolver.lookupAll(usernames);
+			}
+		});
+	}
+
+	CompletableFuture<Void> register(final String username, final String address) {
+		return this.submit(new Call<Void>() {
+			@Override
+			public Void call() throws RemoteException, AlreadyRegisteredException, InvalidDomainException {
+				resolver.register(username, address);
+				return null;
+			}
+		});
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+		timer.shutdownNow();
+		resolver.close();
+	}
+
+	/**
+	 * @return the exception a failed future was completed with, without the
+	 *         {@link CompletionException} wrapper
+	 */
+	static Throwable cause(Throwable error) {
+		return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+	}
+
+	private <T> CompletableFuture<T> submit(final Call<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final Future<?> worker;
+		try {
+			worker = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(call.call());
+					} catch (Exception e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+
+		if (timeoutMillis > 0) {
+			final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (future.completeExceptionally(new TimeoutException("No answer from the nameserver within " + timeoutMillis + " ms."))) {
+						worker.cancel(true);
+					}
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+			future.whenComplete((result, error) -> timeout.cancel(false));
+		}
+		return future;
+	}
+
+	private interface Call<T> {
+		T call() throws Exception;
+	}
+}
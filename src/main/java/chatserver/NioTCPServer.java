@@ -0,0 +1,332 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking TCP front end of the {@link Chatserver}.
+ * <p/>
+ * The acceptor thread hands accepted channels round-robin to a small fixed
+ * number of event loops. Each loop owns a {@link Selector}, decodes the line
+ * protocol from a per-connection read buffer and passes every line to a
+ * {@link Chatserver.ClientSession}, so the replies are the same as with the
+ * blocking {@code HandleClient}.
+ */
+class NioTCPServer implements Runnable {
+
+	private static final int READ_BUFFER_SIZE = 1024;
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private final Chatserver chatserver;
+	private final int port;
+	private final EventLoop[] loops;
+	private final BackpressurePolicy backpressure;
+	// milliseconds between two scans for overdue connections, 0 for none
+	private final long sweepMillis;
+
+	private ServerSocketChannel serverChannel;
+	private volatile boolean running = true;
+
+	public NioTCPServer(Chatserver chatserver, int port, int threads, BackpressurePolicy backpressure) throws IOException {
+		this.chatserver = chatserver;
+		this.port = port;
+		this.backpressure = backpressure;
+		this.sweepMillis = backpressure.action == BackpressurePolicy.Action.DISCONNECT
+				? Math.max(100, TimeUnit.NANOSECONDS.toMillis(backpressure.gracePeriodNanos) / 4) : 0;
+		this.loops = new EventLoop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+
+			for (int i = 0; i < loops.length; i++) {
+				Thread thread = new Thread(loops[i], "nio-loop-" + i);
+				loops[i].thread = thread;
+				thread.start();
+			}
+
+			int next = 0;
+			while (running) {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			}
+		} catch (IOException e) {
+			// server channel closed by exit()
+		} finally {
+			this.exit();
+		}
+	}
+
+	public void exit() {
+		running = false;
+		try {
+			if (serverChannel != null) serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (EventLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * A single selector thread serving a subset of the connections.
+	 */
+	class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private Thread thread;
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Runs the given task on this loop's thread. Tasks queued by the loop
+		 * itself run after the current round of selected keys, which lets
+		 * all replies produced by one read be flushed together.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (Thread.currentThread() != thread) selector.wakeup();
+		}
+
+		void register(final SocketChannel channel) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					NioConnection connection = new NioConnection(EventLoop.this, channel);
+					try {
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+					} catch (IOException e) {
+						connection.close();
+						return;
+					}
+					connection.session = chatserver.openSession(connection);
+				}
+			});
+		}
+
+		/**
+		 * Closes the connections that stayed congested past the grace period
+		 * of the {@code disconnect} policy, also when no further message is
+		 * offered to them.
+		 */
+		private void closeOverdue() {
+			for (SelectionKey key : selector.keys()) {
+				NioConnection connection = (NioConnection) key.attachment();
+				if (connection.outbound.checkOverdue()) connection.close();
+			}
+		}
+
+		@Override
+		public void run() {
+			long nextSweep = System.currentTimeMillis() + sweepMillis;
+			try {
+				while (running) {
+					if (tasks.isEmpty()) {
+						selector.select(sweepMillis);
+					} else {
+						selector.selectNow();
+					}
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						NioConnection connection = (NioConnection) key.attachment();
+
+						if (key.isValid() && key.isReadable()) connection.read();
+						if (key.isValid() && key.isWritable()) connection.flush();
+					}
+
+					if (sweepMillis > 0 && System.currentTimeMillis() >= nextSweep) {
+						closeOverdue();
+						nextSweep = System.currentTimeMillis() + sweepMillis;
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				e.printStackTrace();
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					((NioConnection) key.attachment()).close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A non-blocking client connection. Replies may be sent from any thread;
+	 * they are queued and written by the owning event loop with gathering
+	 * writes.
+	 */
+	class NioConnection implements ClientConnection {
+
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private final Charset charset = Chatserver.CHARSET;
+		private final OutboundQueue outbound = new OutboundQueue(backpressure);
+		private final ByteBuffer[] batch = new ByteBuffer[Chatserver.WRITE_BATCH_SIZE];
+		private int batchIndex;
+		private int batchCount;
+		private final AtomicBoolean flushScheduled = new AtomicBoolean();
+		private final Runnable flushTask = new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+
+		private final Runnable closeTask = new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		};
+
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private SelectionKey key;
+		private Chatserver.ClientSession session;
+
+		NioConnection(EventLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads the available bytes and dispatches every complete line.
+		 */
+		void read() {
+			try {
+				if (channel.read(readBuffer) < 0) {
+					this.close();
+					return;
+				}
+
+				readBuffer.flip();
+				byte[] data = readBuffer.array();
+				int start = readBuffer.position();
+				for (int i = start; i < readBuffer.limit() && channel.isOpen(); i++) {
+					if (data[i] == '\n') {
+						int end = i > start && data[i - 1] == '\r' ? i - 1 : i;
+						String line = new String(data, start, end - start, charset);
+						start = i + 1;
+						session.handleCommand(line);
+					}
+				}
+				readBuffer.position(start);
+				readBuffer.compact();
+
+				if (!readBuffer.hasRemaining()) {
+					if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+						this.close();
+						return;
+					}
+					ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+					readBuffer.flip();
+					larger.put(readBuffer);
+					readBuffer = larger;
+				}
+			} catch (IOException e) {
+				this.close();
+			} catch (RuntimeException e) {
+				// a malformed command must not take down the whole loop
+				e.printStackTrace();
+				this.close();
+			}
+		}
+
+		/**
+		 * Writes as much of the queued output as the socket accepts and
+		 * registers for write readiness if something is left. Several queued
+		 * messages are written with a single gathering write.
+		 */
+		void flush() {
+			flushScheduled.set(false);
+			if (!key.isValid()) return;
+			try {
+				while (true) {
+					if (batchIndex == batchCount) {
+						batchIndex = 0;
+						batchCount = outbound.drainTo(batch);
+						if (batchCount == 0) {
+							key.interestOps(SelectionKey.OP_READ);
+							return;
+						}
+					}
+
+					channel.write(batch, batchIndex, batchCount - batchIndex);
+					while (batchIndex < batchCount && !batch[batchIndex].hasRemaining()) {
+						batch[batchIndex++] = null;
+					}
+					if (batchIndex < batchCount) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+			} catch (IOException e) {
+				this.close();
+			}
+		}
+
+		@Override
+		public boolean send(ByteBuffer message) throws IOException {
+			if (!channel.isOpen()) throw new IOException("Connection closed");
+			if (!outbound.offer(message)) {
+				if (outbound.isOverdue()) loop.execute(closeTask);
+				return false;
+			}
+
+			if (flushScheduled.compareAndSet(false, true)) {
+				loop.execute(flushTask);
+			}
+			return true;
+		}
+
+		@Override
+		public void close() {
+			if (!channel.isOpen()) return;
+			if (key != null) key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			outbound.clear();
+			if (session != null) session.closed();
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UDP front end of the {@link Chatserver}, answering {@code !list} from the
+ * {@link PresenceIndex}.
+ * <p/>
+ * Several worker threads receive in parallel. Where the platform supports
+ * {@code SO_REUSEPORT} every worker binds its own channel to the port and
+ * the kernel spreads the datagrams; otherwise all workers share a single
+ * channel. Each worker owns one direct receive and one direct send buffer
+ * and matches commands on the received bytes, so serving a request does not
+ * allocate apart from building a reply after a change of presence.
+ */
+class NioUDPServer implements Runnable {
+
+	private static final byte[] LIST = "!list".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] UNKNOWN = "UNKNOWN UDP COMMAND".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] USAGE = "Usage: !list [<offset> <limit>]".getBytes(StandardCharsets.US_ASCII);
+	private static final int RECEIVE_BUFFER_SIZE = 1024;
+
+	private final PresenceIndex presence;
+	private final DatagramChannel[] channels;
+	private final Worker[] workers;
+
+	/**
+	 * Binds the channels.
+	 *
+	 * @param presence
+	 *            the index answering {@code !list}
+	 * @param port
+	 *            the UDP port
+	 * @param threads
+	 *            the number of receiving threads
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public NioUDPServer(PresenceIndex presence, int port, int threads) throws IOException {
+		this.presence = presence;
+		this.workers = new Worker[Math.max(1, threads)];
+
+		DatagramChannel first = DatagramChannel.open();
+		boolean reusePort = workers.length > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		if (reusePort) first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		first.bind(new InetSocketAddress(port));
+
+		this.channels = new DatagramChannel[reusePort ? workers.length : 1];
+		channels[0] = first;
+		try {
+			for (int i = 1; i < channels.length; i++) {
+				channels[i] = DatagramChannel.open();
+				channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				channels[i].bind(new InetSocketAddress(port));
+			}
+		} catch (IOException e) {
+			this.exit();
+			throw e;
+		}
+
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(channels[i % channels.length]);
+		}
+	}
+
+	/**
+	 * Starts the additional workers and runs the first one on the calling
+	 * thread.
+	 */
+	@Override
+	public void run() {
+		for (int i = 1; i < workers.length; i++) {
+			new Thread(workers[i], "udp-worker-" + i).start();
+		}
+		workers[0].run();
+	}
+
+	public void exit() {
+		for (DatagramChannel channel : channels) {
+			try {
+				if (channel != null) channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A receiving thread with its own buffers.
+	 */
+	private class Worker implements Runnable {
+
+		private final DatagramChannel channel;
+		private final ByteBuffer in = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+		private final ByteBuffer out = ByteBuffer.allocateDirect(PresenceIndex.MAX_DATAGRAM_SIZE);
+
+		Worker(DatagramChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					in.clear();
+					SocketAddress sender = channel.receive(in);
+					in.flip();
+					for (byte[] datagram : this.handle()) {
+						this.send(datagram, sender);
+					}
+				} catch (ClosedChannelException e) {
+					// closed by exit()
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Matches the received command. The command is trimmed like
+		 * {@link String#trim()} without decoding it.
+		 */
+		private byte[][] handle() {
+			int start = in.position();
+			int end = in.limit();
+			while (start < end && (in.get(start) & 0xff) <= ' ') start++;
+			while (end > start && (in.get(end - 1) & 0xff) <= ' ') end--;
+
+			if (!this.startsWith(LIST, start, end)) return new byte[][] { UNKNOWN };
+			int position = start + LIST.length;
+			if (position == end) return presence.listReply();
+			if (in.get(position) != ' ') return new byte[][] { UNKNOWN };
+
+			// "!list <offset> <limit>"
+			long offset = 0;
+			long limit = 0;
+			int fields = 0;
+			while (position < end) {
+				while (position < end && in.get(position) == ' ') position++;
+				if (position == end) break;
+				long value = 0;
+				int digits = 0;
+				byte b;
+				while (position < end && (b = in.get(position)) != ' ') {
+					if (b < '0' || b > '9' || ++digits > 9) return new byte[][] { USAGE };
+					value = value * 10 + (b - '0');
+					position++;
+				}
+				if (fields == 0) offset = value;
+				else limit = value;
+				fields++;
+			}
+			if (fields != 2) return new byte[][] { USAGE };
+			return presence.listReply((int) offset, (int) limit);
+		}
+
+		private boolean startsWith(byte[] prefix, int start, int end) {
+			if (end - start < prefix.length) return false;
+			for (int i = 0; i < prefix.length; i++) {
+				if (in.get(start + i) != prefix[i]) return false;
+			}
+			return true;
+		}
+
+		private void send(byte[] datagram, SocketAddress target) throws IOException {
+			out.clear();
+			out.put(datagram);
+			out.flip();
+			channel.send(out, target);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of encoded messages waiting to be written to a single client.
+ * <p/>
+ * Producers (the session itself and broadcasting threads) never block. If the
+ * client falls behind, the {@link BackpressurePolicy} decides whether old or
+ * new messages are dropped or the client has to be disconnected. The writer
+ * of the connection takes out several messages at once with
+ * {@link #drainTo(ByteBuffer[])} and writes them with a single call.
+ */
+class OutboundQueue {
+
+	private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+	private final BackpressurePolicy policy;
+
+	private long pendingBytes;
+	private boolean congested;
+	private long congestedSince;
+	private boolean overdue;
+
+	OutboundQueue(BackpressurePolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Appends the message unless the backpressure policy rejects it.
+	 *
+	 * @param message
+	 *            the encoded message, its remaining bytes are written
+	 * @return {@code false} if the message was dropped; check
+	 *         {@link #isOverdue()} to find out whether the client has to be
+	 *         disconnected
+	 */
+	synchronized boolean offer(ByteBuffer message) {
+		int size = message.remaining();
+
+		if (!congested && pendingBytes + size > policy.highWatermark) {
+			congested = true;
+			congestedSince = System.nanoTime();
+			policy.congestions.incrementAndGet();
+		}
+
+		if (congested) {
+			switch (policy.action) {
+			case DROP_NEWEST:
+				policy.droppedNewest.incrementAndGet();
+				return false;
+			case DROP_OLDEST:
+				while (!queue.isEmpty() && pendingBytes + size > policy.lowWatermark) {
+					pendingBytes -= queue.pollFirst().remaining();
+					policy.droppedOldest.incrementAndGet();
+				}
+				congested = false;
+				break;
+			case DISCONNECT:
+				if (overdue) return false;
+				if (System.nanoTime() - congestedSince > policy.gracePeriodNanos) {
+					overdue = true;
+					policy.disconnects.incrementAndGet();
+					return false;
+				}
+				break;
+			}
+		}
+
+		if (queue.size() >= policy.capacity) {
+			policy.droppedFull.incrementAndGet();
+			return false;
+		}
+		queue.addLast(message);
+		pendingBytes += size;
+		return true;
+	}
+
+	/**
+	 * Moves as many messages as fit into the given array.
+	 *
+	 * @param batch
+	 *            the array to fill, starting at index 0
+	 * @return the number of messages moved
+	 */
+	synchronized int drainTo(ByteBuffer[] batch) {
+		int count = 0;
+		while (count < batch.length && !queue.isEmpty()) {
+			ByteBuffer message = queue.pollFirst();
+			pendingBytes -= message.remaining();
+			batch[count++] = message;
+		}
+		if (congested && pendingBytes <= policy.lowWatermark) {
+			congested = false;
+		}
+		return count;
+	}
+
+	synchronized boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * @return the number of bytes queued but not yet handed to the writer
+	 */
+	synchronized long pendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * @return {@code true} if the client stayed congested longer than the
+	 *         grace period of the {@code disconnect} policy
+	 */
+	synchronized boolean isOverdue() {
+		return overdue;
+	}
+
+	/**
+	 * Checks the grace period of the {@code disconnect} policy without
+	 * waiting for the next message, so that a client is disconnected even if
+	 * nothing is sent to it anymore.
+	 *
+	 * @return {@code true} if the client has to be disconnected
+	 */
+	synchronized boolean checkOverdue() {
+		if (!overdue && congested && policy.action == BackpressurePolicy.Action.DISCONNECT
+				&& System.nanoTime() - congestedSince > policy.gracePeriodNanos) {
+			overdue = true;
+			policy.disconnects.incrementAndGet();
+		}
+		return overdue;
+	}
+
+	synchronized void clear() {
+		queue.clear();
+		pendingBytes = 0;
+	}
+}
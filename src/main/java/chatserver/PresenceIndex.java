@@ -0,0 +1,144 @@
+package chatserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorted set of the online usernames together with the encoded reply to the
+ * UDP {@code !list} command.
+ * <p/>
+ * Login and logout update the set in O(log n). The reply is built lazily,
+ * once per change of presence, and then served to every further
+ * {@code !list} as is.
+ * <p/>
+ * Replies are split into datagrams of at most {@link #MAX_DATAGRAM_SIZE}
+ * bytes. Every datagram starts with the header line
+ * {@code !list <id> <index>/<count>} followed by complete lines of the
+ * reply, so the client can put the fragments of reply {@code id} back
+ * together in any order.
+ */
+class PresenceIndex {
+
+	/**
+	 * Maximum size of a single reply datagram, including its header.
+	 */
+	static final int MAX_DATAGRAM_SIZE = 1024;
+
+	private final ConcurrentSkipListSet<String> online = new ConcurrentSkipListSet<String>();
+	private final AtomicLong version = new AtomicLong();
+	private final AtomicLong replyIds = new AtomicLong();
+	private final Charset charset;
+	private volatile Reply reply = new Reply(-1, null);
+
+	PresenceIndex(Charset charset) {
+		this.charset = charset;
+	}
+
+	void add(String username) {
+		if (online.add(username)) version.incrementAndGet();
+	}
+
+	void remove(String username) {
+		if (online.remove(username)) version.incrementAndGet();
+	}
+
+	/**
+	 * @return the online usernames in ascending order (live view)
+	 */
+	NavigableSet<String> usernames() {
+		return online;
+	}
+
+	/**
+	 * @return the datagrams listing all online users; must not be modified
+	 */
+	byte[][] listReply() {
+		long current = version.get();
+		Reply cached = reply;
+		if (cached.version == current) {
+			return cached.datagrams;
+		}
+
+		StringBuilder text = new StringBuilder("Online users: \n");
+		for (String user : online) {
+			text.append("* ").append(user).append('\n');
+		}
+		byte[][] datagrams = this.fragment(text);
+		if (version.get() == current) {
+			reply = new Reply(current, datagrams);
+		}
+		return datagrams;
+	}
+
+	/**
+	 * @param offset
+	 *            the number of users to skip
+	 * @param limit
+	 *            the maximum number of users to list
+	 * @return the datagrams listing one page of the online users
+	 */
+	byte[][] listReply(int offset, int limit) {
+		StringBuilder text = new StringBuilder();
+		int count = 0;
+		int index = 0;
+		for (String user : online) {
+			if (count == limit) break;
+			if (index++ < offset) continue;
+			text.append("* ").append(user).append('\n');
+			count++;
+		}
+		int total = online.size();
+		if (count == 0) {
+			text.append("No online users at offset " + offset + " (" + total + " online).");
+		} else {
+			text.insert(0, "Online users " + (offset + 1) + "-" + (offset + count) + " of " + total + ": \n");
+		}
+		return this.fragment(text);
+	}
+
+	/**
+	 * Splits the text at line boundaries into datagrams with headers.
+	 */
+	private byte[][] fragment(CharSequence text) {
+		List<byte[]> bodies = new ArrayList<byte[]>();
+		String[] lines = text.toString().split("(?<=\n)");
+		int budget = MAX_DATAGRAM_SIZE - 64;
+		ByteArrayOutputStream body = new ByteArrayOutputStream(budget);
+		for (String line : lines) {
+			byte[] encoded = line.getBytes(charset);
+			if (body.size() > 0 && body.size() + encoded.length > budget) {
+				bodies.add(body.toByteArray());
+				body.reset();
+			}
+			// a single line longer than a datagram is cut
+			body.write(encoded, 0, Math.min(encoded.length, budget));
+		}
+		bodies.add(body.toByteArray());
+
+		long id = replyIds.incrementAndGet();
+		byte[][] datagrams = new byte[bodies.size()][];
+		for (int i = 0; i < datagrams.length; i++) {
+			byte[] header = ("!list " + id + " " + (i + 1) + "/" + datagrams.length + "\n").getBytes(charset);
+			byte[] datagram = Arrays.copyOf(header, header.length + bodies.get(i).length);
+			System.arraycopy(bodies.get(i), 0, datagram, header.length, bodies.get(i).length);
+			datagrams[i] = datagram;
+		}
+		return datagrams;
+	}
+
+	private static class Reply {
+		final long version;
+		final byte[][] datagrams;
+
+		Reply(long version, byte[][] datagrams) {
+			this.version = version;
+			this.datagrams = datagrams;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package chatserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import util.Config;
+
+/**
+ * Credential store read from the {@code <username>.password} keys of a
+ * {@link Config} or a properties file, e.g. {@code user.properties}.
+ * <p/>
+ * The accounts are copied into two parallel arrays sorted by username once
+ * when the store is built; lookups and prefix searches are binary searches.
+ */
+class PropertiesCredentialStore implements CredentialStore {
+
+	private static final String SUFFIX = ".password";
+
+	private final String[] names;
+	private final String[] credentials;
+
+	PropertiesCredentialStore(Config config) {
+		Set<String> keys = config.listKeys();
+		Map<String, String> accounts = new HashMap<String, String>();
+		for (String key : keys) {
+			accounts.put(key, config.getString(key));
+		}
+		String[][] sorted = sort(accounts);
+		this.names = sorted[0];
+		this.credentials = sorted[1];
+	}
+
+	/**
+	 * Reads the accounts directly from the given file, bypassing the cache
+	 * of {@link java.util.ResourceBundle}.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	PropertiesCredentialStore(Path file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		}
+		Map<String, String> accounts = new HashMap<String, String>();
+		for (String key : properties.stringPropertyNames()) {
+			accounts.put(key, properties.getProperty(key));
+		}
+		String[][] sorted = sort(accounts);
+		this.names = sorted[0];
+		this.credentials = sorted[1];
+	}
+
+	/**
+	 * @return the usernames of the {@code .password} keys in ascending order
+	 *         and their credentials
+	 */
+	private static String[][] sort(Map<String, String> properties) {
+		String[] names = new String[properties.size()];
+		int count = 0;
+		for (String key : properties.keySet()) {
+			if (key.endsWith(SUFFIX)) {
+				names[count++] = key.substring(0, key.length() - SUFFIX.length());
+			}
+		}
+		names = Arrays.copyOf(names, count);
+		Arrays.sort(names);
+
+		String[] credentials = new String[count];
+		for (int i = 0; i < count; i++) {
+			credentials[i] = properties.get(names[i] + SUFFIX);
+		}
+		return new String[][] { names, credentials };
+	}
+
+	@Override
+	public int size() {
+		return names.length;
+	}
+
+	@Override
+	public String username(int index) {
+		return names[index];
+	}
+
+	@Override
+	public int first(String prefix) {
+		int low = 0;
+		int high = names.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (names[middle].compareTo(prefix) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	public String credential(String username) {
+		int index = Arrays.binarySearch(names, username);
+		return index >= 0 ? credentials[index] : null;
+	}
+
+	@Override
+	public void close() {
+		// nothing to release
+	}
+}
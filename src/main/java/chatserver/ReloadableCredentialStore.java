@@ -0,0 +1,215 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credential store that follows changes of its source file.
+ * <p/>
+ * A {@link WatchService} reports modifications of the file; the file is then
+ * loaded into a complete new store, which is compared with the current one
+ * and swapped in with a single volatile write. Readers never lock and always
+ * see either the old or the new accounts. Unchanged files and files that
+ * fail to load leave the current store in place.
+ */
+class ReloadableCredentialStore implements CredentialStore, Runnable {
+
+	/**
+	 * Builds a store from the source file.
+	 */
+	interface Loader {
+		CredentialStore load(Path file) throws IOException;
+	}
+
+	/**
+	 * Notified after a new store has been swapped in.
+	 */
+	interface Listener {
+		/**
+		 * @param diff
+		 *            the differences to the previous store
+		 */
+		void reloaded(Diff diff);
+	}
+
+	/**
+	 * The differences between two stores.
+	 */
+	static class Diff {
+		int added;
+		final List<String> changed = new ArrayList<String>();
+		final List<String> removed = new ArrayList<String>();
+
+		boolean isEmpty() {
+			return added == 0 && changed.isEmpty() && removed.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return added + " added, " + changed.size() + " changed, " + removed.size() + " removed";
+		}
+	}
+
+	/**
+	 * Time to wait for further events after a change, so that a file which
+	 * is still being written is not loaded.
+	 */
+	private static final long SETTLE_MILLIS = 200;
+
+	private final Path file;
+	private final Loader loader;
+	private final Listener listener;
+	private final WatchService watcher;
+	private volatile CredentialStore current;
+
+	/**
+	 * Loads the file and starts watching its directory. Call {@link #run()}
+	 * on a separate thread to apply changes.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be loaded or watched
+	 */
+	ReloadableCredentialStore(Path file, Loader loader, Listener listener) throws IOException {
+		this.file = file.toAbsolutePath();
+		this.loader = loader;
+		this.listener = listener;
+		this.current = loader.load(this.file);
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	@Override
+	public int size() {
+		return current.size();
+	}
+
+	@Override
+	public String username(int index) {
+		return current.username(index);
+	}
+
+	@Override
+	public int first(String prefix) {
+		return current.first(prefix);
+	}
+
+	@Override
+	public String credential(String username) {
+		return current.credential(username);
+	}
+
+	@Override
+	public CredentialStore snapshot() {
+		return current;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean touched = this.touched(key);
+				// let the writer finish and collect its further events
+				while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					touched |= this.touched(key);
+				}
+				if (touched) this.reload();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Loads the source file and swaps the new store in if anything changed.
+	 *
+	 * @return the differences, {@code null} if the file could not be loaded
+	 */
+	Diff reload() {
+		CredentialStore next;
+		try {
+			next = loader.load(file);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Could not reload " + file + ": " + e.getMessage());
+			return null;
+		}
+
+		CredentialStore previous = current;
+		Diff diff = diff(previous, next);
+		if (diff.isEmpty()) {
+			this.close(next);
+			return diff;
+		}
+		current = next;
+		this.close(previous);
+		listener.reloaded(diff);
+		return diff;
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+		current.close();
+	}
+
+	private boolean touched(WatchKey key) {
+		boolean touched = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (file.getFileName().equals(event.context())) touched = true;
+		}
+		key.reset();
+		return touched;
+	}
+
+	private void close(CredentialStore store) {
+		try {
+			store.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Walks both stores in username order at the same time.
+	 */
+	static Diff diff(CredentialStore previous, CredentialStore next) {
+		Diff diff = new Diff();
+		int i = 0;
+		int j = 0;
+		while (i < previous.size() || j < next.size()) {
+			if (j == next.size()) {
+				diff.removed.add(previous.username(i++));
+				continue;
+			}
+			if (i == previous.size()) {
+				diff.added++;
+				j++;
+				continue;
+			}
+			String old = previous.username(i);
+			String name = next.username(j);
+			if (old.equals(name)) {
+				if (!previous.credential(old).equals(next.credential(name))) diff.changed.add(name);
+				i++;
+				j++;
+			} else if (next.first(old) > j) {
+				// ordered by the store itself, which may differ from String order
+				diff.added++;
+				j++;
+			} else {
+				diff.removed.add(old);
+				i++;
+			}
+		}
+		return diff;
+	}
+}
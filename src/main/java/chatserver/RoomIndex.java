@@ -0,0 +1,78 @@
+package chatserver;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps chat rooms to their subscribed sessions.
+ * <p/>
+ * The members of a room are kept in an immutable array that is replaced on
+ * every join or leave. Publishing to a room therefore only reads one array
+ * and costs O(members), independent of the number of online users. Empty
+ * rooms are removed.
+ */
+class RoomIndex {
+
+	private static final Chatserver.ClientSession[] EMPTY = new Chatserver.ClientSession[0];
+
+	private final ConcurrentHashMap<String, Chatserver.ClientSession[]> rooms = new ConcurrentHashMap<String, Chatserver.ClientSession[]>();
+
+	/**
+	 * Subscribes the session to the given room, creating the room if needed.
+	 *
+	 * @return {@code false} if the session already was a member
+	 */
+	boolean join(String room, final Chatserver.ClientSession session) {
+		final boolean[] added = new boolean[1];
+		rooms.compute(room, (name, members) -> {
+			if (members == null) {
+				added[0] = true;
+				return new Chatserver.ClientSession[] { session };
+			}
+			if (indexOf(members, session) >= 0) return members;
+			added[0] = true;
+			Chatserver.ClientSession[] joined = Arrays.copyOf(members, members.length + 1);
+			joined[members.length] = session;
+			return joined;
+		});
+		return added[0];
+	}
+
+	/**
+	 * Unsubscribes the session from the given room.
+	 *
+	 * @return {@code false} if the session was not a member
+	 */
+	boolean leave(String room, final Chatserver.ClientSession session) {
+		final boolean[] removed = new boolean[1];
+		rooms.computeIfPresent(room, (name, members) -> {
+			int index = indexOf(members, session);
+			if (index < 0) return members;
+			removed[0] = true;
+			if (members.length == 1) return null;
+			Chatserver.ClientSession[] left = new Chatserver.ClientSession[members.length - 1];
+			System.arraycopy(members, 0, left, 0, index);
+			System.arraycopy(members, index + 1, left, index, left.length - index);
+			return left;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Returns the current members of the room. The array must not be
+	 * modified.
+	 *
+	 * @return the members, an empty array if the room does not exist
+	 */
+	Chatserver.ClientSession[] members(String room) {
+		Chatserver.ClientSession[] members = rooms.get(room);
+		return members == null ? EMPTY : members;
+	}
+
+	private static int indexOf(Chatserver.ClientSession[] members, Chatserver.ClientSession session) {
+		for (int i = 0; i < members.length; i++) {
+			if (members[i] == session) return i;
+		}
+		return -1;
+	}
+}
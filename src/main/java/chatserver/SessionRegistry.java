@@ -0,0 +1,103 @@
+package chatserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The logged in users of a {@link Chatserver}.
+ * <p/>
+ * Lookups never lock and login/logout only lock the hash bin of the given
+ * username, so connection threads do not contend with each other. Every
+ * change bumps a version number; broadcasters iterate an array snapshot that
+ * is rebuilt at most once per version instead of iterating the live map.
+ * The sorted {@link PresenceIndex} is updated under the same bin lock as the
+ * map, so it never disagrees with it for a given user.
+ */
+class SessionRegistry {
+
+	private static final Chatserver.ClientSession[] EMPTY = new Chatserver.ClientSession[0];
+
+	private final ConcurrentHashMap<String, Chatserver.ClientSession> sessions = new ConcurrentHashMap<String, Chatserver.ClientSession>();
+	private final AtomicLong version = new AtomicLong();
+	private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+	private final PresenceIndex presence = new PresenceIndex(Chatserver.CHARSET);
+
+	/**
+	 * Registers the session as the active one of the given user. An older
+	 * session of the same user is replaced.
+	 */
+	void login(String username, final Chatserver.ClientSession session) {
+		sessions.compute(username, (name, previous) -> {
+			presence.add(name);
+			return session;
+		});
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Removes the given user if the given session is still the active one.
+	 *
+	 * @return {@code true} if the user was removed
+	 */
+	boolean logout(String username, final Chatserver.ClientSession session) {
+		final boolean[] removed = new boolean[1];
+		sessions.computeIfPresent(username, (name, current) -> {
+			if (current != session) return current;
+			presence.remove(name);
+			removed[0] = true;
+			return null;
+		});
+		if (removed[0]) version.incrementAndGet();
+		return removed[0];
+	}
+
+	Chatserver.ClientSession get(String username) {
+		return sessions.get(username);
+	}
+
+	boolean isOnline(String username) {
+		return sessions.containsKey(username);
+	}
+
+	int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return the sorted index of the online usernames
+	 */
+	PresenceIndex presence() {
+		return presence;
+	}
+
+	/**
+	 * Returns all active sessions. The array must not be modified; it is
+	 * shared by all callers until the next login or logout.
+	 *
+	 * @return the sessions at the time of the last change
+	 */
+	Chatserver.ClientSession[] snapshot() {
+		long current = version.get();
+		Snapshot cached = snapshot;
+		if (cached.version == current) {
+			return cached.sessions;
+		}
+
+		Chatserver.ClientSession[] sessions = this.sessions.values().toArray(EMPTY);
+		// only publish if no login/logout happened while copying
+		if (version.get() == current) {
+			snapshot = new Snapshot(current, sessions);
+		}
+		return sessions;
+	}
+
+	private static class Snapshot {
+		final long version;
+		final Chatserver.ClientSession[] sessions;
+
+		Snapshot(long version, Chatserver.ClientSession[] sessions) {
+			this.version = version;
+			this.sessions = sessions;
+		}
+	}
+}
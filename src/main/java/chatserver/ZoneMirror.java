@@ -0,0 +1,144 @@
+package chatserver;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nameserver.INameserverForChatserver;
+import nameserver.ZoneTransfer;
+import nameserver.exceptions.InvalidDomainException;
+import nameserver.exceptions.UnknownUsernameException;
+
+/**
+ * Local copies of the users of frequently looked up zones.
+ * <p/>
+ * Lookups that need a remote call are counted per zone. Once a zone gets at
+ * least the threshold of lookups within one interval, its users are copied
+ * with {@link INameserverForChatserver#transfer(long)}, and from then on the
+ * changes are fetched every interval. Lookups in a mirrored zone are answered
+ * from memory; they may miss registrations of the last interval made by other
+ * chatservers. A mirror whose nameserver fails is dropped, and its zone is
+ * looked up remotely again.
+ */
+class ZoneMirror {
+
+	private final Locator locator;
+	private final int threshold;
+	private final int maxZones;
+	private final ConcurrentHashMap<String, AtomicInteger> hits = new ConcurrentHashMap<String, AtomicInteger>();
+	private final Map<String, Mirror> mirrors = new ConcurrentHashMap<String, Mirror>();
+
+	/**
+	 * Finds the nameserver of a zone.
+	 */
+	interface Locator {
+		INameserverForChatserver locate(String zone) throws RemoteException, InvalidDomainException;
+	}
+
+	/**
+	 * @param threshold
+	 *            the number of lookups per interval from which a zone is
+	 *            mirrored; 0 disables mirroring
+	 * @param maxZones
+	 *            the maximum number of mirrored zones
+	 * @param interval
+	 *            the interval in milliseconds
+	 */
+	ZoneMirror(Locator locator, int threshold, int maxZones, long interval, ScheduledExecutorService scheduler) {
+		this.locator = locator;
+		this.threshold = threshold;
+		this.maxZones = maxZones;
+		if (threshold <= 0) return;
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				update();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the address of the user if the zone is mirrored, {@code null}
+	 *         if it is not
+	 * @throws UnknownUsernameException
+	 *             if the zone is mirrored and has no such user
+	 */
+	String lookup(String zone, String name) throws UnknownUsernameException {
+		Mirror mirror = mirrors.get(zone);
+		if (mirror == null) return null;
+		String address = mirror.users.get(name);
+		if (address == null) {
+			throw new UnknownUsernameException("Lookup for '" + name + "' failed. No such user registered on this nameserver.");
+		}
+		return address;
+	}
+
+	/**
+	 * Counts a lookup in the zone that needs a remote call.
+	 */
+	void hit(String zone) {
+		if (threshold <= 0) return;
+		AtomicInteger count = hits.get(zone);
+		if (count == null) {
+			count = new AtomicInteger();
+			AtomicInteger existing = hits.putIfAbsent(zone, count);
+			if (existing != null) count = existing;
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Fetches the changes of the mirrored zones and starts mirroring the
+	 * zones that got hot during the last interval.
+	 */
+	void update() {
+		for (Map.Entry<String, Mirror> mirror : mirrors.entrySet()) {
+			try {
+				mirror.getValue().update();
+			} catch (RemoteException e) {
+				mirrors.remove(mirror.getKey());
+			}
+		}
+
+		for (Map.Entry<String, AtomicInteger> zone : hits.entrySet()) {
+			if (zone.getValue().get() < threshold || mirrors.size() >= maxZones || mirrors.containsKey(zone.getKey())) continue;
+			try {
+				Mirror mirror = new Mirror(locator.locate(zone.getKey()));
+				mirror.update();
+				mirrors.put(zone.getKey(), mirror);
+			} catch (RemoteException | InvalidDomainException e) {
+				// looked up remotely until it gets hot again
+			}
+		}
+		hits.clear();
+	}
+
+	private static class Mirror {
+		final INameserverForChatserver nameserver;
+		final Map<String, String> users = new ConcurrentHashMap<String, String>();
+		long version = -1;
+
+		Mirror(INameserverForChatserver nameserver) {
+			this.nameserver = nameserver;
+		}
+
+		void update() throws RemoteException {
+			ZoneTransfer transfer = nameserver.transfer(version);
+			if (transfer.isFull()) {
+				// drop users removed since the previous copy
+				users.keySet().retainAll(transfer.getUsers().keySet());
+			}
+			for (Map.Entry<String, String> user : transfer.getUsers().entrySet()) {
+				if (user.getValue() == null) {
+					users.remove(user.getKey());
+				} else {
+					users.put(user.getKey(), user.getValue());
+				}
+			}
+			version = transfer.getVersion();
+		}
+	}
+}
@@ -17,12 +17,16 @@ import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import javax.crypto.Mac;
 
 import org.bouncycastle.util.encoders.Base64;
 
 import util.Config;
+import util.ExecutorFactory;
 import util.Keys;
 
 public class Client implements IClientCli, Runnable {
@@ -39,6 +43,8 @@ public class Client implements IClientCli, Runnable {
 	private TCPClient tcpClient;
 	private Thread tcpThread;
 
+	private ExecutorService executor;
+
 	private String username;
 
 	private String lastPrivateMessageLookup = "error";
@@ -58,6 +64,7 @@ public class Client implements IClientCli, Runnable {
 		this.config = config;
 		this.userRequestStream = userRequestStream;
 		this.userResponseStream = userResponseStream;	
+		this.executor = ExecutorFactory.create(config, "client");
 		try {
 			Key secretKey = Keys.readSecretKey(new File("keys/hmac.key"));
 			hMac = Mac.getInstance(secretKey.getAlgorithm());
@@ -93,11 +100,30 @@ public class Client implements IClientCli, Runnable {
 					continue;
 				}
 
+				if (sentence.indexOf("!list ") == 0) {
+					String[] parts = sentence.trim().split("\\s+");
+					try {
+						if (parts.length != 3) throw new NumberFormatException();
+						int offset = Integer.parseInt(parts[1]);
+						int limit = Integer.parseInt(parts[2]);
+						if (offset < 0 || limit < 0) throw new NumberFormatException();
+						this.list(offset, limit);
+					} catch (NumberFormatException e) {
+						this.write("Usage: !list [<offset> <limit>]");
+					}
+					continue;
+				}
+
 				if (sentence.equals("!lastMsg")) {
 					this.lastMsg();
 					continue;
 				}
 
+				if (sentence.equals("!history") || sentence.indexOf("!history ") == 0) {
+					this.history(sentence.substring("!history".length()).trim());
+					continue;
+				}
+
 				if (sentence.equals("!logout")) {
 					this.logout();
 					continue;
@@ -123,9 +149,18 @@ public class Client implements IClientCli, Runnable {
 				}
 
 				if (sentence.indexOf("!lookup ") == 0) {
-					String[] parts = sentence.split(" ");
+					// one or several usernames
+					this.lookup(sentence.substring("!lookup ".length()).trim());
+					continue;
+				}
 
-					this.lookup(parts[1]);
+				if (sentence.indexOf("!join ") == 0) {
+					this.join(sentence.substring("!join ".length()));
+					continue;
+				}
+
+				if (sentence.indexOf("!leave ") == 0) {
+					this.leave(sentence.substring("!leave ".length()));
 					continue;
 				}
 
@@ -178,6 +213,12 @@ public class Client implements IClientCli, Runnable {
 		return null;
 	}
 
+	@Override
+	public String list(int offset, int limit) throws IOException {
+		udpServer.send("!list " + offset + " " + limit);
+		return null;
+	}
+
 	@Override
 	public String msg(String username, String message) throws IOException {
 
@@ -200,7 +241,7 @@ public class Client implements IClientCli, Runnable {
 		//this.write("Message lookup" + lastPrivateMessageLookup);
 		String[] parts = lastPrivateMessageLookup.split(":");
 
-		new Thread(new TCPPrivateMessageSender(parts[0], Integer.parseInt(parts[1]), message)).start();
+		executor.execute(new TCPPrivateMessageSender(parts[0], Integer.parseInt(parts[1]), message));
 
 		return null;
 	}
@@ -215,8 +256,20 @@ public class Client implements IClientCli, Runnable {
 	public String register(String privateAddress) throws IOException {
 		tcpClient.send("!register " + privateAddress);
 		String[] parts = privateAddress.split(":");
-		new Thread(new TCPPrivateMessageListener(Integer.parseInt(parts[1]))).start();
+		executor.execute(new TCPPrivateMessageListener(Integer.parseInt(parts[1])));
+
+		return null;
+	}
 
+	@Override
+	public String join(String room) throws IOException {
+		tcpClient.send("!join " + room);
+		return null;
+	}
+
+	@Override
+	public String leave(String room) throws IOException {
+		tcpClient.send("!leave " + room);
 		return null;
 	}
 
@@ -226,6 +279,12 @@ public class Client implements IClientCli, Runnable {
 		return null;
 	}
 
+	@Override
+	public String history(String range) throws IOException {
+		tcpClient.send(range.isEmpty() ? "!history" : "!history " + range);
+		return null;
+	}
+
 	@Override
 	public String exit() throws IOException {
 		this.write("Exiting Client " + this.componentName);
@@ -238,6 +297,7 @@ public class Client implements IClientCli, Runnable {
 
 		udpThread.interrupt();
 		tcpThread.interrupt();
+		executor.shutdownNow();
 		
 		System.in.close();
 
@@ -270,9 +330,20 @@ public class Client implements IClientCli, Runnable {
 	}
 
 	class UDPServer implements Runnable {
+		private static final int MAX_PENDING_REPLIES = 16;
+
 		private DatagramSocket udpSocket;
 		private String ip;
 		private int port;
+		// fragments of multi-datagram replies by reply id, oldest evicted first
+		private Map<Long, String[]> pending = new LinkedHashMap<Long, String[]>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+				return size() > MAX_PENDING_REPLIES;
+			}
+		};
 
 		public UDPServer(String ip, int port) throws SocketException {
 			udpSocket = new DatagramSocket();
@@ -282,20 +353,65 @@ public class Client implements IClientCli, Runnable {
 
 		@Override
 		public void run() {
+			byte[] buf = new byte[1024];
 			while(true) {
-				byte[] buf = new byte[1024];
 				DatagramPacket packet = new DatagramPacket(buf, buf.length);
 				try {
 					udpSocket.receive(packet);
-					String received = new String(packet.getData()).trim();
+					String received = new String(packet.getData(), 0, packet.getLength());
 
-					Client.this.write(received);
+					if (received.indexOf("!list ") == 0) {
+						received = this.reassemble(received);
+						if (received == null) continue;
+					}
+					Client.this.write(received.trim());
 				} catch (IOException e) {
 					//e.printStackTrace();
 				}
 			}
 		}
 
+		/**
+		 * Collects a fragment of the form {@code !list <id> <index>/<count>\n<body>}.
+		 *
+		 * @return the complete reply or {@code null} if fragments are missing
+		 */
+		private String reassemble(String fragment) {
+			int headerEnd = fragment.indexOf('\n');
+			String[] header = fragment.substring(0, headerEnd < 0 ? fragment.length() : headerEnd).split(" ");
+			String body = headerEnd < 0 ? "" : fragment.substring(headerEnd + 1);
+			String[] position = header.length == 3 ? header[2].split("/") : new String[0];
+			if (position.length != 2) return fragment;
+
+			long id;
+			int index;
+			int count;
+			try {
+				id = Long.parseLong(header[1]);
+				index = Integer.parseInt(position[0]);
+				count = Integer.parseInt(position[1]);
+			} catch (NumberFormatException e) {
+				return fragment;
+			}
+			if (index < 1 || index > count) return fragment;
+			if (count == 1) return body;
+
+			String[] parts = pending.get(id);
+			if (parts == null || parts.length != count) {
+				parts = new String[count];
+				pending.put(id, parts);
+			}
+			parts[index - 1] = body;
+
+			StringBuilder reply = new StringBuilder();
+			for (String part : parts) {
+				if (part == null) return null;
+				reply.append(part);
+			}
+			pending.remove(id);
+			return reply.toString();
+		}
+
 		public void send(String reply) throws IOException {
 			InetAddress ip_addr = InetAddress.getByName(ip);
 
@@ -385,7 +501,7 @@ public class Client implements IClientCli, Runnable {
 
 		            while (true) {
 		                incoming = ss.accept();
-		                new Thread(new HandleClient(incoming)).start();
+		                executor.execute(new HandleClient(incoming));
 		            }
 
 		        } catch (IOException e) {
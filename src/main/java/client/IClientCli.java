@@ -52,6 +52,21 @@ public interface IClientCli {
 	 */
 	public String list() throws IOException;
 
+	/**
+	 * Lists one page of the online users, e.g. {@code !list 20 10} lists the
+	 * 21st to 30th user in alphabetical order. Like {@link #list()} this
+	 * command is transmitted and received via UDP.
+	 *
+	 * @param offset
+	 *            the number of users to skip
+	 * @param limit
+	 *            the maximum number of users to list
+	 * @return a string containing the users of the page.
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public String list(int offset, int limit) throws IOException;
+
 	/**
 	 * Sends a private message to the given user. In order to establish a
 	 * private connection to the other user an implicit lookup has to be
@@ -70,7 +85,9 @@ public interface IClientCli {
 
 	/**
 	 * Performs a lookup of the given username and returns the address (IP:port)
-	 * that has to be used to establish a private conversation.
+	 * that has to be used to establish a private conversation. Several
+	 * usernames separated by spaces are looked up together and answered
+	 * with one line per user.
 	 *
 	 * @param username
 	 *            communication partner of private conversation.
@@ -97,6 +114,29 @@ public interface IClientCli {
 	 */
 	public String register(String privateAddress) throws IOException;
 
+	/**
+	 * Joins the given chat room. Messages sent with {@code !send #room ...}
+	 * are delivered to the members of the room only.
+	 *
+	 * @param room
+	 *            the name of the room, with or without leading '#'
+	 * @return message stating whether the room was joined
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public String join(String room) throws IOException;
+
+	/**
+	 * Leaves the given chat room.
+	 *
+	 * @param room
+	 *            the name of the room, with or without leading '#'
+	 * @return message stating whether the room was left
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public String leave(String room) throws IOException;
+
 	/**
 	 * Prints the last received message, considering only public
 	 * messages.
@@ -106,6 +146,19 @@ public interface IClientCli {
 	 */
 	public String lastMsg() throws IOException;
 
+	/**
+	 * Prints the recent public messages kept by the chatserver, each prefixed
+	 * with its sequence number. Used to catch up after reconnecting.
+	 *
+	 * @param range
+	 *            empty for the last ten messages, a number of messages or
+	 *            {@code since <sequence>}
+	 * @return a string containing the messages
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public String history(String range) throws IOException;
+
 	/**
 	 * Performs a shutdown of the client and release all resources.<br/>
 	 * Shutting down an already terminated client has no effect.
@@ -0,0 +1,49 @@
+package nameserver;
+
+import java.io.Serializable;
+
+/**
+ * The outcome for a single name of a batch call such as
+ * {@link INameserverForChatserver#lookupAll(java.util.Collection)}: either a
+ * value or the exception the corresponding single call would have thrown.
+ */
+public class BatchResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String value;
+	private final Exception error;
+
+	private BatchResult(String value, Exception error) {
+		this.value = value;
+		this.error = error;
+	}
+
+	public static BatchResult success(String value) {
+		return new BatchResult(value, null);
+	}
+
+	public static BatchResult failure(Exception error) {
+		return new BatchResult(null, error);
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	/**
+	 * @return the looked up address, or the registered address for
+	 *         registrations; {@code null} on failure
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the exception of a failed entry, e.g. an
+	 *         {@link nameserver.exceptions.UnknownUsernameException}
+	 */
+	public Exception getError() {
+		return error;
+	}
+}
@@ -0,0 +1,248 @@
+package nameserver;
+
+import java.io.IOException;
+import java.rmi.MarshalledObject;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The nameservers of a subzone: the primary, which receives all
+ * registrations, and any number of secondaries (replicas), which receive
+ * them from the primary.
+ * <p/>
+ * {@link #next()} hands out the healthy servers in turn, so that lookups
+ * are spread across all of them. A server is marked unhealthy when a call
+ * to it fails and healthy again by the next successful {@link #check()}.
+ * A replica that fails {@link #MAX_FAILURES} checks in a row is removed; a
+ * restarted replica registers again with a new stub.
+ * <p/>
+ * A delegation restored by the {@link ZoneStore} holds its stubs as
+ * {@link MarshalledObject}s and unmarshals each one when it is first used.
+ */
+class Delegation {
+
+	static final int MAX_FAILURES = 3;
+	private static final long PROBE_PAUSE_MILLIS = 500;
+
+	// the primary first, then the replicas in the order they registered
+	private final List<Server> servers = new CopyOnWriteArrayList<Server>();
+	private final AtomicInteger turn = new AtomicInteger();
+
+	Delegation(INameserver primary) {
+		this.servers.add(new Server(primary, null));
+	}
+
+	Delegation(MarshalledObject<INameserver> primary) {
+		this.servers.add(new Server(null, primary));
+	}
+
+	private Delegation(Server primary, List<Server> replicas) {
+		this.servers.add(primary);
+		this.servers.addAll(replicas);
+	}
+
+	/**
+	 * @return a delegation with the given primary and the replicas of this
+	 *         one
+	 */
+	Delegation withPrimary(INameserver primary) {
+		return new Delegation(new Server(primary, null), servers.subList(1, servers.size()));
+	}
+
+	/**
+	 * @see #withPrimary(INameserver)
+	 */
+	Delegation withPrimary(MarshalledObject<INameserver> primary) {
+		return new Delegation(new Server(null, primary), servers.subList(1, servers.size()));
+	}
+
+	/**
+	 * @throws RemoteException
+	 *             if a restored stub cannot be unmarshalled
+	 */
+	INameserver primary() throws RemoteException {
+		return servers.get(0).nameserver();
+	}
+
+	boolean isPrimary(INameserver nameserver) {
+		return servers.get(0).is(nameserver);
+	}
+
+	/**
+	 * Probes the primary with a cheap remote call up to
+	 * {@link #MAX_FAILURES} times, with a pause between the probes, so that
+	 * a single lost call does not count as a failed server.
+	 *
+	 * @return {@code true} if every probe failed
+	 */
+	boolean isPrimaryDown() {
+		for (int probe = 1; ; probe++) {
+			try {
+				this.primary().listZones();
+				return false;
+			} catch (RemoteException e) {
+				if (probe >= MAX_FAILURES) return true;
+			}
+			try {
+				Thread.sleep(PROBE_PAUSE_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return {@code false} if the replica was already known
+	 */
+	synchronized boolean addReplica(INameserver replica) {
+		for (Server server : servers) {
+			if (server.is(replica)) return false;
+		}
+		servers.add(new Server(replica, null));
+		return true;
+	}
+
+	/**
+	 * Adds a replica restored by the {@link ZoneStore}.
+	 */
+	synchronized void addReplica(MarshalledObject<INameserver> replica) {
+		for (Server server : servers) {
+			if (replica.equals(server.marshalled)) return;
+		}
+		servers.add(new Server(null, replica));
+	}
+
+	/**
+	 * @return the replicas, without the primary; replicas whose stubs cannot
+	 *         be unmarshalled are left out
+	 */
+	List<INameserver> replicas() {
+		List<INameserver> replicas = new ArrayList<INameserver>();
+		for (Server server : servers.subList(1, servers.size())) {
+			try {
+				replicas.add(server.nameserver());
+			} catch (RemoteException e) {
+				server.healthy = false;
+			}
+		}
+		return replicas;
+	}
+
+	MarshalledObject<INameserver> marshalledPrimary() throws IOException {
+		return servers.get(0).marshalled();
+	}
+
+	List<MarshalledObject<INameserver>> marshalledReplicas() throws IOException {
+		List<MarshalledObject<INameserver>> replicas = new ArrayList<MarshalledObject<INameserver>>();
+		for (Server server : servers.subList(1, servers.size())) {
+			replicas.add(server.marshalled());
+		}
+		return replicas;
+	}
+
+	/**
+	 * @return the number of servers, including the primary
+	 */
+	int size() {
+		return servers.size();
+	}
+
+	/**
+	 * @return the next healthy server, or the primary if none is healthy
+	 */
+	INameserver next() throws RemoteException {
+		int size = servers.size();
+		int start = turn.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			Server server = servers.get((start + i) % size);
+			if (!server.healthy) continue;
+			try {
+				return server.nameserver();
+			} catch (RemoteException e) {
+				server.healthy = false;
+			}
+		}
+		return this.primary();
+	}
+
+	/**
+	 * Takes the server out of the rotation until it passes a health check.
+	 */
+	void failed(INameserver nameserver) {
+		for (Server server : servers) {
+			if (server.nameserver == nameserver) server.healthy = false;
+		}
+	}
+
+	/**
+	 * Checks every server with a cheap remote call and updates its health.
+	 *
+	 * @return the number of removed replicas
+	 */
+	int check() {
+		int removed = 0;
+		Server primary = servers.get(0);
+		for (Server server : servers) {
+			try {
+				server.nameserver().listZones();
+				server.healthy = true;
+				server.failures = 0;
+			} catch (RemoteException e) {
+				server.healthy = false;
+				if (++server.failures >= MAX_FAILURES && server != primary && this.remove(server)) removed++;
+			}
+		}
+		return removed;
+	}
+
+	private synchronized boolean remove(Server server) {
+		return servers.remove(server);
+	}
+
+	private static class Server {
+		volatile INameserver nameserver;
+		volatile MarshalledObject<INameserver> marshalled;
+		volatile boolean healthy = true;
+		// consecutive failed checks, only touched by check()
+		int failures;
+
+		Server(INameserver nameserver, MarshalledObject<INameserver> marshalled) {
+			this.nameserver = nameserver;
+			this.marshalled = marshalled;
+		}
+
+		INameserver nameserver() throws RemoteException {
+			INameserver stub = nameserver;
+			if (stub == null) {
+				try {
+					stub = marshalled.get();
+				} catch (IOException | ClassNotFoundException e) {
+					throw new RemoteException("Could not restore the stub of a nameserver.", e);
+				}
+				nameserver = stub;
+			}
+			return stub;
+		}
+
+		MarshalledObject<INameserver> marshalled() throws IOException {
+			MarshalledObject<INameserver> bytes = marshalled;
+			if (bytes == null) {
+				bytes = ZoneStore.marshal(nameserver);
+				marshalled = bytes;
+			}
+			return bytes;
+		}
+
+		boolean is(INameserver other) {
+			try {
+				return this.nameserver().equals(other);
+			} catch (RemoteException e) {
+				return false;
+			}
+		}
+	}
+}
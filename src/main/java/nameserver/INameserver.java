@@ -19,4 +19,30 @@ public interface INameserver extends INameserverForChatserver, Remote, Serializa
 			throws RemoteException, AlreadyRegisteredException,
 			InvalidDomainException;
 
+	/**
+	 * Registers a secondary nameserver for a zone that already has a
+	 * primary. Like {@link #registerNameserver} the domain is relative to
+	 * this nameserver and the request is forwarded down the tree. The parent
+	 * of the zone hands out the replica in {@link #getNameserver(String)}
+	 * and tells the primary to replicate to it.
+	 *
+	 * @param domain
+	 *            the zone, e.g. {@code vienna.at.}
+	 * @param replica
+	 *            the secondary nameserver
+	 */
+	public void registerReplica(String domain, INameserver replica)
+			throws RemoteException, InvalidDomainException;
+
+	/**
+	 * Makes this nameserver, the primary of its zone, replicate its users
+	 * and subzones to the given secondary: everything registered so far at
+	 * once and every later registration as it happens. Adding a known
+	 * replica again has no effect.
+	 *
+	 * @param replica
+	 *            the secondary nameserver of this zone
+	 */
+	public void addReplica(INameserver replica) throws RemoteException;
+
 }
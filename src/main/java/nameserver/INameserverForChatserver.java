@@ -2,6 +2,9 @@ package nameserver;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
@@ -23,4 +26,56 @@ public interface INameserverForChatserver extends Remote {
 
 	public String lookup(String username) throws RemoteException, UnknownUsernameException;
 
+	/**
+	 * Resolves a username below this nameserver's zone, e.g.
+	 * {@code alice.vienna.at} at the root, by forwarding the request down the
+	 * tree. The caller needs a single remote call regardless of the depth of
+	 * the name.
+	 *
+	 * @param username
+	 *            the username relative to this nameserver's zone
+	 * @return the registered address
+	 */
+	public String resolve(String username) throws RemoteException, InvalidDomainException, UnknownUsernameException;
+
+	/**
+	 * Registers several users in one call. Like
+	 * {@link #registerUser(String, String)} the names are relative to this
+	 * nameserver; the registrations for each subzone are forwarded in one
+	 * batch.
+	 *
+	 * @param addresses
+	 *            the addresses by username
+	 * @return the outcome by username
+	 */
+	public Map<String, BatchResult> registerAll(Map<String, String> addresses) throws RemoteException;
+
+	/**
+	 * Looks up several users of this nameserver's zone in one call.
+	 *
+	 * @param usernames
+	 *            the usernames as passed to {@link #lookup(String)}
+	 * @return the address or the {@link UnknownUsernameException} by username
+	 */
+	public Map<String, BatchResult> lookupAll(Collection<String> usernames) throws RemoteException;
+
+	/**
+	 * @return the names of the zones registered directly below this
+	 *         nameserver, e.g. the top-level zones for the root
+	 */
+	public List<String> listZones() throws RemoteException;
+
+	/**
+	 * Transfers the users of this nameserver's zone, so that the caller can
+	 * keep a copy of it. The first call passes {@code -1} and receives all
+	 * users; later calls pass the version of the previous transfer and
+	 * receive the changes since then. If the changes are no longer known,
+	 * all users are transferred again.
+	 *
+	 * @param fromVersion
+	 *            the version of the previous transfer, or {@code -1}
+	 * @return all users or the changes, see {@link ZoneTransfer#isFull()}
+	 */
+	public ZoneTransfer transfer(long fromVersion) throws RemoteException;
+
 }
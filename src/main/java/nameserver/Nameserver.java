@@ -5,20 +5,35 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.MarshalledObject;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.MissingResourceException;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
 import nameserver.exceptions.UnknownUsernameException;
 import util.Config;
+import util.ExecutorFactory;
 
 /**
  * Please note that this class is not needed for Lab 1, but will later be used
@@ -37,9 +52,28 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 	
 	private String domain = null;
 	
-	private HashMap<String, INameserver> sub_servers;
+	private final ZoneTable<Delegation> sub_servers = new ZoneTable<Delegation>();
 	
-	private HashMap<String, String> users;
+	// secondaries of this zone, only filled on its primary
+	private final CopyOnWriteArrayList<INameserver> replicas = new CopyOnWriteArrayList<INameserver>();
+	
+	// consecutive failed replications per replica, only touched by the replication thread
+	private final Map<INameserver, Integer> replicationFailures = new HashMap<INameserver, Integer>();
+	
+	// one thread, so the replicas apply registrations in order
+	private final ExecutorService replication = ExecutorFactory.newBoundedPool(1, "nameserver-replication");
+	
+	// health checks of subzone replicas and snapshots
+	private ScheduledExecutorService scheduler;
+	
+	private String componentName;
+	
+	private ZoneStore store;
+	
+	// nameservers of deeper zones, learned from registrations passing through
+	private ConcurrentHashMap<String, Delegation> delegations = new ConcurrentHashMap<String, Delegation>();
+	
+	private final ZoneTable<String> users = new ZoneTable<String>();
 	
 	/**
 	 * @param componentName
@@ -53,13 +87,12 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 	 */
 	public Nameserver(String componentName, Config config,
 			InputStream userRequestStream, PrintStream userResponseStream) {
+		this.componentName = componentName;
 		this.config = config;
 		this.userRequestStream = userRequestStream;
 		this.userResponseStream = userResponseStream;
 
 		rootServerID = config.getString("root_id");
-		sub_servers = new HashMap<String, INameserver>();
-		users = new HashMap<String, String>();
 	}
 
 	@Override
@@ -70,6 +103,9 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 			domain = null;
 		}
 		
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		this.restore();
+		
 		if (domain == null) {
 			this.write("Starting rootserver...");
 			try {
@@ -89,7 +125,12 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 				
 				INameserver stub_ns = (INameserver) UnicastRemoteObject.exportObject(this, 0);
 				
-				root.registerNameserver(domain + ".", stub_ns, stub_ns);
+				if (Boolean.parseBoolean(config.getString("replica", "false"))) {
+					this.write("Registering as replica of domain '" + domain + "'...");
+					root.registerReplica(domain + ".", stub_ns);
+				} else {
+					root.registerNameserver(domain + ".", stub_ns, stub_ns);
+				}
 				
 			} catch (RemoteException | NotBoundException | AlreadyRegisteredException | InvalidDomainException e) {
 				e.printStackTrace();
@@ -98,6 +139,27 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 			
 		}
 		
+		int interval = config.getInt("health.interval", 5000);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				boolean dropped = false;
+				for (Map.Entry<String, Delegation> zone : sub_servers.snapshot().entrySet()) {
+					if (zone.getValue().size() < 2) continue;
+					int removed = zone.getValue().check();
+					if (removed > 0) {
+						write("Dropped " + removed + " unreachable replica(s) of domain '" + zone.getKey() + "'.");
+						dropped = true;
+					}
+				}
+				for (Delegation delegation : delegations.values()) {
+					if (delegation.size() > 1) delegation.check();
+				}
+				// the log only records additions
+				if (dropped && store != null) snapshot();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		
 		//Read name-server commands
 				try {
 				while (true) {
@@ -132,8 +194,7 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 	public String nameservers() throws IOException {
 		String ret = "\n";
 		int id = 1;
-		SortedSet<String> servers_sorted = new TreeSet<String>(sub_servers.keySet());
-		for (String server : servers_sorted) {
+		for (String server : sub_servers.snapshot().keySet()) {
 				ret += id + ". " + server + "\n";
 				id++;
 		}
@@ -144,9 +205,8 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 	public String addresses() throws IOException {
 		String ret = "\n";
 		int id = 1;
-		SortedSet<String> users_sorted = new TreeSet<String>(users.keySet());
-		for (String user : users_sorted) {
-				ret += id + ". " + user + " " + users.get(user) + "\n";
+		for (Map.Entry<String, String> user : users.snapshot().entrySet()) {
+				ret += id + ". " + user.getKey() + " " + user.getValue() + "\n";
 				id++;
 		}
 		return ret;
@@ -155,6 +215,12 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 	@Override
 	public String exit() throws IOException {
 		UnicastRemoteObject.unexportObject(this, true);
+		replication.shutdownNow();
+		if (scheduler != null) scheduler.shutdownNow();
+		if (store != null) {
+			this.snapshot();
+			store.close();
+		}
 		try {
 			//Rootserver should clean registry.
 			if (domain == null) {
@@ -168,18 +234,118 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 		return "Nameserver exiting...";
 	}
 	
+	/**
+	 * Restores the zone from the {@link ZoneStore} in {@code store.dir}, if
+	 * one is configured, and schedules the snapshots. Stubs of subzones are
+	 * unmarshalled when they are first used; a subzone whose nameserver
+	 * restarted meanwhile registers again.
+	 */
+	private void restore() {
+		String dir = config.getString("store.dir", "");
+		if (dir.isEmpty()) return;
+		
+		store = new ZoneStore(Paths.get(dir), componentName);
+		try {
+			int records = store.load(new ZoneStore.Restorer() {
+				@Override
+				public void user(String name, String address) {
+					users.put(name, address);
+				}
+
+				@Override
+				public void zone(String zone, MarshalledObject<INameserver> primary) {
+					// a later record of a zone replaces its primary, its replicas stay
+					Delegation existing = sub_servers.get(zone);
+					sub_servers.put(zone, existing == null ? new Delegation(primary) : existing.withPrimary(primary));
+				}
+
+				@Override
+				public void zoneReplica(String zone, MarshalledObject<INameserver> replica) {
+					Delegation delegation = sub_servers.get(zone);
+					if (delegation != null) delegation.addReplica(replica);
+				}
+
+				@Override
+				public void replica(MarshalledObject<INameserver> replica) {
+					try {
+						replicas.addIfAbsent(replica.get());
+					} catch (IOException | ClassNotFoundException e) {
+						write("Could not restore a replica: " + e.getMessage());
+					}
+				}
+			});
+			this.write("Restored " + records + " records from " + dir + ".");
+		} catch (IOException e) {
+			this.write("Could not restore the zone from " + dir + ": " + e.getMessage());
+			store = null;
+			return;
+		}
+		
+		int interval = config.getInt("store.snapshot.interval", 60000);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				snapshot();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	private void snapshot() {
+		try {
+			store.snapshot(users, sub_servers, replicas);
+		} catch (IOException e) {
+			this.write("Could not write a snapshot: " + e.getMessage());
+		}
+	}
+	
+	private void persistUser(String name, String address) {
+		if (store == null) return;
+		try {
+			store.logUser(name, address);
+		} catch (IOException e) {
+			this.write("Could not log the registration of '" + name + "': " + e.getMessage());
+		}
+	}
+	
+	private void persistZone(String zone, INameserver primary) {
+		if (store == null) return;
+		try {
+			store.logZone(zone, primary);
+		} catch (IOException e) {
+			this.write("Could not log the registration of domain '" + zone + "': " + e.getMessage());
+		}
+	}
+	
+	private void persistZoneReplica(String zone, INameserver replica) {
+		if (store == null) return;
+		try {
+			store.logZoneReplica(zone, replica);
+		} catch (IOException e) {
+			this.write("Could not log a replica of domain '" + zone + "': " + e.getMessage());
+		}
+	}
+	
+	private void persistReplica(INameserver replica) {
+		if (store == null) return;
+		try {
+			store.logReplica(replica);
+		} catch (IOException e) {
+			this.write("Could not log a replica: " + e.getMessage());
+		}
+	}
+	
 	private void write(String msg) {
 		if (domain != null) userResponseStream.println("NAMESERVER " + domain + " > "  + msg);
 		if (domain == null) userResponseStream.println("ROOTSERVER > "  + msg);
 	}
 
 	@Override
-	public void registerUser(String username, String address)
+	public void registerUser(String username, final String address)
 			throws RemoteException, AlreadyRegisteredException,
 			InvalidDomainException {
 		
 		
-		String[] zones = username.split("\\.");
+		final String[] zones = username.split("\\.");
 		
 		String top_domain = zones[zones.length-1];
 		
@@ -187,18 +353,25 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 			throw new InvalidDomainException("Invalid Domain Exception");
 		} else if (zones.length == 1) {
 			//Register user on this server
-			if (users.containsKey(username)) users.remove(username);
 			users.put(zones[0], address);
+			this.persistUser(zones[0], address);
             this.write("Registered username '"+ top_domain + "' with address: " + address);
+			this.replicate(new Replication() {
+				@Override
+				public void to(INameserver replica) throws Exception {
+					replica.registerUser(zones[0], address);
+				}
+			});
 		} else if (zones.length > 1) {
-			if (!sub_servers.containsKey(top_domain)) {
+			Delegation sub_server = sub_servers.get(top_domain);
+			if (sub_server == null) {
 				throw new InvalidDomainException("Error when registering user '" + username + "'. There does not exist a name server for " + top_domain + ".");
 			} else {
 				String subdomain = "";
 				for (int i = 0; i <= zones.length-2; i++) subdomain += zones[i]+".";
 				
 				this.write("Registration of username '" + username + "' Forwarding request to sub-nameserver.");
-				sub_servers.get(top_domain).registerUser(subdomain, address);
+				sub_server.primary().registerUser(subdomain, address);
 			}
 		}
 	}
@@ -207,25 +380,191 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 	public INameserverForChatserver getNameserver(String zone)
 		throws RemoteException, InvalidDomainException {
 		this.write("Nameserver request for zone '" + zone + "'");
-		if (!sub_servers.containsKey(zone)) {
+		Delegation sub_server = sub_servers.get(zone);
+		if (sub_server == null) {
 			throw new InvalidDomainException("Requested zone " + zone + " is not registered on this nameserver.");
 		} else {
-			return sub_servers.get(zone);
+			return sub_server.next();
 		}
 	}
 
 	@Override
 	public String lookup(String username) throws RemoteException, UnknownUsernameException {
 		this.write("Username lookup request for '" + username + "'");
-		if (!users.containsKey(username)) { 
+		String address = users.get(username);
+		if (address == null) {
 			throw new UnknownUsernameException("Lookup for '" + username + "' failed. No such user registered on this nameserver.");
 		} else {
-			return users.get(username);
+			return address;
 		}
 	}
 
 	@Override
-	public void registerNameserver(String domain, INameserver nameserver,
+	public String resolve(String username) throws RemoteException, InvalidDomainException, UnknownUsernameException {
+		this.write("Resolve request for '" + username + "'");
+		String[] zones = username.split("\\.");
+		if (zones.length == 0) throw new InvalidDomainException("Invalid Domain Exception");
+		if (zones.length == 1) return this.lookup(zones[0]);
+		
+		// the deepest learned delegation first, e.g. 'vienna.at' for 'alice.vienna.at'
+		for (int i = 1; i < zones.length - 1; i++) {
+			String zone = join(zones, i, zones.length);
+			Delegation delegation = delegations.get(zone);
+			if (delegation != null) {
+				try {
+					return this.resolve(delegation, join(zones, 0, i));
+				} catch (RemoteException e) {
+					// all its nameservers are gone, forget it and ask the subzone
+					delegations.remove(zone, delegation);
+					break;
+				}
+			}
+		}
+		
+		String top_domain = zones[zones.length-1];
+		Delegation sub_server = sub_servers.get(top_domain);
+		if (sub_server == null) {
+			throw new InvalidDomainException("Requested zone " + top_domain + " is not registered on this nameserver.");
+		}
+		return this.resolve(sub_server, join(zones, 0, zones.length - 1));
+	}
+	
+	/**
+	 * Resolves the name at the nameservers of a delegation in turn, trying
+	 * each of them once before giving up. Only a server that could not be
+	 * reached is taken out of the rotation; an error it raised itself, such
+	 * as a {@link java.rmi.ServerException} from a failed onward call, is
+	 * passed on as it is.
+	 */
+	private String resolve(Delegation delegation, String name)
+			throws RemoteException, InvalidDomainException, UnknownUsernameException {
+		for (int attempt = 1; ; attempt++) {
+			INameserver nameserver = delegation.next();
+			try {
+				return nameserver.resolve(name);
+			} catch (RemoteException e) {
+				if (!isUnreachable(e)) throw e;
+				delegation.failed(nameserver);
+				if (attempt >= delegation.size()) throw e;
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the call failed on the way to or from the server, that
+	 * is the server is down, not exported any more or did not answer within
+	 * the response timeout.
+	 */
+	private static boolean isUnreachable(RemoteException e) {
+		return e instanceof ConnectException || e instanceof ConnectIOException
+				|| e instanceof NoSuchObjectException || e instanceof UnmarshalException;
+	}
+	
+	private static String join(String[] zones, int from, int to) {
+		StringBuilder joined = new StringBuilder(zones[from]);
+		for (int i = from + 1; i < to; i++) joined.append('.').append(zones[i]);
+		return joined.toString();
+	}
+
+	@Override
+	public Map<String, BatchResult> registerAll(Map<String, String> addresses) throws RemoteException {
+		this.write("Batch registration of " + addresses.size() + " usernames.");
+		Map<String, BatchResult> results = new HashMap<String, BatchResult>();
+		// forwarded name -> original name, by top level zone
+		Map<String, Map<String, String>> forwarded = new HashMap<String, Map<String, String>>();
+		final HashMap<String, String> local = new HashMap<String, String>();
+
+		for (Map.Entry<String, String> entry : addresses.entrySet()) {
+			String username = entry.getKey();
+			String[] zones = username.split("\\.");
+			if (zones.length == 0) {
+				results.put(username, BatchResult.failure(new InvalidDomainException("Invalid Domain Exception")));
+				continue;
+			}
+			if (zones.length == 1) {
+				users.put(zones[0], entry.getValue());
+				this.persistUser(zones[0], entry.getValue());
+				local.put(zones[0], entry.getValue());
+				results.put(username, BatchResult.success(entry.getValue()));
+				continue;
+			}
+
+			String top_domain = zones[zones.length-1];
+			if (!sub_servers.contains(top_domain)) {
+				results.put(username, BatchResult.failure(new InvalidDomainException("Error when registering user '" + username + "'. There does not exist a name server for " + top_domain + ".")));
+				continue;
+			}
+			String subdomain = "";
+			for (int i = 0; i <= zones.length-2; i++) subdomain += zones[i]+".";
+			Map<String, String> batch = forwarded.get(top_domain);
+			if (batch == null) {
+				batch = new HashMap<String, String>();
+				forwarded.put(top_domain, batch);
+			}
+			batch.put(subdomain, username);
+		}
+		if (!local.isEmpty()) {
+			this.replicate(new Replication() {
+				@Override
+				public void to(INameserver replica) throws Exception {
+					replica.registerAll(local);
+				}
+			});
+		}
+
+		for (Map.Entry<String, Map<String, String>> zone : forwarded.entrySet()) {
+			Map<String, String> batch = zone.getValue();
+			Map<String, String> subAddresses = new HashMap<String, String>();
+			for (Map.Entry<String, String> name : batch.entrySet()) {
+				subAddresses.put(name.getKey(), addresses.get(name.getValue()));
+			}
+			try {
+				Map<String, BatchResult> subResults = sub_servers.get(zone.getKey()).primary().registerAll(subAddresses);
+				for (Map.Entry<String, BatchResult> result : subResults.entrySet()) {
+					results.put(batch.get(result.getKey()), result.getValue());
+				}
+			} catch (RemoteException e) {
+				for (String username : batch.values()) {
+					results.put(username, BatchResult.failure(e));
+				}
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public Map<String, BatchResult> lookupAll(Collection<String> usernames) throws RemoteException {
+		this.write("Batch lookup request for " + usernames.size() + " usernames.");
+		Map<String, BatchResult> results = new HashMap<String, BatchResult>();
+		for (String username : usernames) {
+			String address = users.get(username);
+			if (address == null) {
+				results.put(username, BatchResult.failure(new UnknownUsernameException("Lookup for '" + username + "' failed. No such user registered on this nameserver.")));
+			} else {
+				results.put(username, BatchResult.success(address));
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public List<String> listZones() throws RemoteException {
+		return new ArrayList<String>(sub_servers.snapshot().keySet());
+	}
+
+	@Override
+	public ZoneTransfer transfer(long fromVersion) throws RemoteException {
+		// read first, so that the changes or the copy contain at least this version
+		long version = users.version();
+		Map<String, String> changes = users.changesSince(fromVersion);
+		if (changes != null) return ZoneTransfer.delta(version, changes);
+		
+		this.write("Full zone transfer of " + users.size() + " usernames.");
+		return ZoneTransfer.full(version, new HashMap<String, String>(users.snapshot()));
+	}
+
+	@Override
+	public void registerNameserver(String domain, final INameserver nameserver,
 			INameserverForChatserver nameserverForChatserver)
 			throws RemoteException, AlreadyRegisteredException,
 			InvalidDomainException {
@@ -239,23 +578,162 @@ public class Nameserver implements INameserver, INameserverCli, Runnable {
 			throw new InvalidDomainException("Invalid Domain Exception");
 		} else if (zones.length == 1) {
 			//Register zone on this server
-			if(sub_servers.containsKey(top_domain)) throw new AlreadyRegisteredException("Domain " + top_domain + " is already registered.");
-			sub_servers.put(top_domain, nameserver);
+			Delegation delegation = new Delegation(nameserver);
+			Delegation existing = sub_servers.putIfAbsent(top_domain, delegation);
+			if (existing != null) {
+				if (existing.isPrimary(nameserver) || !existing.isPrimaryDown()) {
+					throw new AlreadyRegisteredException("Domain " + top_domain + " is already registered.");
+				}
+				// the nameserver of the zone restarted, e.g. since its stub was restored
+				delegation = existing.withPrimary(nameserver);
+				synchronized (sub_servers) {
+					if (sub_servers.get(top_domain) != existing) {
+						throw new AlreadyRegisteredException("Domain " + top_domain + " is already registered.");
+					}
+					sub_servers.put(top_domain, delegation);
+				}
+				this.write("Domain '" + top_domain + "' taken over by a new primary, the previous one failed " + Delegation.MAX_FAILURES + " probes.");
+				for (INameserver replica : delegation.replicas()) {
+					try {
+						nameserver.addReplica(replica);
+					} catch (RemoteException e) {
+						this.write("Could not hand a replica of domain '" + top_domain + "' to its new primary: " + e.getMessage());
+					}
+				}
+			}
+			this.persistZone(top_domain, nameserver);
             this.write("Registered domain '" + top_domain + "'.");
+			final String zone = top_domain + ".";
+			this.replicate(new Replication() {
+				@Override
+				public void to(INameserver replica) throws Exception {
+					replica.registerNameserver(zone, nameserver, nameserver);
+				}
+			});
 		} else if (zones.length > 1) {
 			//Register zone on sub-server
-			if (!sub_servers.containsKey(top_domain)) {
+			Delegation sub_server = sub_servers.get(top_domain);
+			if (sub_server == null) {
 				throw new InvalidDomainException("Error when registering '" + domain + "'. There does not exist a name server for " + top_domain + " yet.");
 			} else {
 				String subdomain = "";
 				for (int i = 0; i <= zones.length-2; i++) subdomain += zones[i] + ".";
 				
 				this.write("Registration of domain '" + subdomain + "'. Forwarding request to sub-nameserver.");
-				sub_servers.get(top_domain).registerNameserver(subdomain, nameserver, nameserver);
+				sub_server.primary().registerNameserver(subdomain, nameserver, nameserver);
+				delegations.put(join(zones, 0, zones.length), new Delegation(nameserver));
 			}
 		}
 	}
 	
+	@Override
+	public void registerReplica(String domain, final INameserver replica)
+			throws RemoteException, InvalidDomainException {
+		
+		String[] zones = domain.split("\\.");
+		if (zones.length == 0) throw new InvalidDomainException("Invalid Domain Exception");
+		
+		String top_domain = zones[zones.length-1];
+		Delegation sub_server = sub_servers.get(top_domain);
+		if (sub_server == null) {
+			throw new InvalidDomainException("Error when registering a replica of '" + domain + "'. There does not exist a name server for " + top_domain + " yet.");
+		}
+		
+		if (zones.length == 1) {
+			if (!sub_server.addReplica(replica)) return;
+			this.write("Registered replica of domain '" + top_domain + "'.");
+			this.persistZoneReplica(top_domain, replica);
+			sub_server.primary().addReplica(replica);
+			final String zone = top_domain + ".";
+			this.replicate(new Replication() {
+				@Override
+				public void to(INameserver ownReplica) throws Exception {
+					ownReplica.registerReplica(zone, replica);
+				}
+			});
+		} else {
+			String subdomain = "";
+			for (int i = 0; i <= zones.length-2; i++) subdomain += zones[i] + ".";
+			
+			this.write("Registration of a replica of domain '" + subdomain + "'. Forwarding request to sub-nameserver.");
+			sub_server.primary().registerReplica(subdomain, replica);
+			Delegation learned = delegations.get(join(zones, 0, zones.length));
+			if (learned != null) learned.addReplica(replica);
+		}
+	}
+
+	@Override
+	public void addReplica(final INameserver replica) throws RemoteException {
+		if (!replicas.addIfAbsent(replica)) return;
+		this.persistReplica(replica);
+		this.write("Replicating to a new replica.");
+		
+		// everything registered so far; later registrations follow in order
+		this.replicate(replica, new Replication() {
+			@Override
+			public void to(INameserver replica) throws Exception {
+				replica.registerAll(new HashMap<String, String>(users.snapshot()));
+				for (Map.Entry<String, Delegation> zone : sub_servers.snapshot().entrySet()) {
+					INameserver primary = zone.getValue().primary();
+					try {
+						replica.registerNameserver(zone.getKey() + ".", primary, primary);
+					} catch (AlreadyRegisteredException e) {
+						// known from an earlier replication
+					}
+					for (INameserver zoneReplica : zone.getValue().replicas()) {
+						replica.registerReplica(zone.getKey() + ".", zoneReplica);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Sends a registration to all replicas of this zone, in the background
+	 * and in the order of the registrations.
+	 */
+	private void replicate(Replication registration) {
+		for (INameserver replica : replicas) {
+			this.replicate(replica, registration);
+		}
+	}
+	
+	/**
+	 * A replica that fails {@link Delegation#MAX_FAILURES} replications in a
+	 * row is dropped; a restarted replica registers again with a new stub.
+	 */
+	private void replicate(final INameserver replica, final Replication registration) {
+		replication.execute(new Runnable() {
+			@Override
+			public void run() {
+				// dropped while the registration was waiting
+				if (!replicas.contains(replica)) return;
+				try {
+					registration.to(replica);
+					replicationFailures.remove(replica);
+				} catch (RemoteException e) {
+					int failures = replicationFailures.containsKey(replica) ? replicationFailures.get(replica) + 1 : 1;
+					if (failures < Delegation.MAX_FAILURES) {
+						replicationFailures.put(replica, failures);
+						write("Replication failed: " + e.getMessage());
+						return;
+					}
+					replicationFailures.remove(replica);
+					replicas.remove(replica);
+					write("Dropped a replica after " + failures + " failed replications.");
+					// the log only records additions
+					if (store != null) snapshot();
+				} catch (Exception e) {
+					write("Replication failed: " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	private interface Replication {
+		void to(INameserver replica) throws Exception;
+	}
+	
 	/**
 	 * @param args
 	 *            the first argument is the name of the {@link Nameserver}
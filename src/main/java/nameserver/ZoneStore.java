@@ -0,0 +1,261 @@
+package nameserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.MarshalledObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the state of a {@link Nameserver}: its users, the delegations of
+ * its subzones and the replicas of its own zone.
+ * <p/>
+ * Every registration is appended to a write-ahead log. A periodic
+ * {@link #snapshot(ZoneTable, ZoneTable, List)} writes the complete state
+ * into a compact binary file and starts a new log, after which the older
+ * files are deleted. Both files are numbered by a generation: at startup
+ * {@link #load(Restorer)} reads the newest snapshot and replays the logs of
+ * the same and later generations. Replaying is idempotent, so a
+ * registration that is both in a snapshot and in a log does no harm.
+ * <p/>
+ * Stubs are stored as serialized {@link MarshalledObject}s and handed to
+ * the {@link Restorer} as such, so loading never touches the network; the
+ * stubs are only unmarshalled when they are first used.
+ * <p/>
+ * The log is flushed after every record, which survives a crash of the
+ * process but not of the machine.
+ */
+class ZoneStore {
+
+	private static final int MAGIC = 0x5a4f4e45;
+	private static final byte USER = 1;
+	private static final byte ZONE = 2;
+	private static final byte ZONE_REPLICA = 3;
+	private static final byte REPLICA = 4;
+
+	private final Path dir;
+	private final String name;
+	private long generation;
+	private DataOutputStream log;
+
+	/**
+	 * Receives the restored state.
+	 */
+	interface Restorer {
+		void user(String name, String address);
+
+		void zone(String zone, MarshalledObject<INameserver> primary);
+
+		void zoneReplica(String zone, MarshalledObject<INameserver> replica);
+
+		void replica(MarshalledObject<INameserver> replica);
+	}
+
+	/**
+	 * @param dir
+	 *            the directory of the files
+	 * @param name
+	 *            the prefix of the files, e.g. the component name
+	 */
+	ZoneStore(Path dir, String name) {
+		this.dir = dir;
+		this.name = name;
+	}
+
+	/**
+	 * Restores the state and opens a new log.
+	 *
+	 * @return the number of restored records
+	 */
+	synchronized int load(Restorer restorer) throws IOException {
+		Files.createDirectories(dir);
+		List<Long> snapshots = this.generations(".snapshot");
+		List<Long> logs = this.generations(".log");
+		long from = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+
+		int records = 0;
+		if (!snapshots.isEmpty()) {
+			records += this.read(this.file(from, ".snapshot"), restorer, true);
+		}
+		for (long log : logs) {
+			if (log >= from) records += this.read(this.file(log, ".log"), restorer, false);
+		}
+
+		long last = from;
+		if (!logs.isEmpty()) last = Math.max(last, logs.get(logs.size() - 1));
+		generation = last + 1;
+		log = this.open(this.file(generation, ".log"));
+		return records;
+	}
+
+	synchronized void logUser(String name, String address) throws IOException {
+		log.writeByte(USER);
+		log.writeUTF(name);
+		log.writeUTF(address);
+		log.flush();
+	}
+
+	synchronized void logZone(String zone, INameserver primary) throws IOException {
+		this.write(log, ZONE, zone, marshal(primary));
+		log.flush();
+	}
+
+	synchronized void logZoneReplica(String zone, INameserver replica) throws IOException {
+		this.write(log, ZONE_REPLICA, zone, marshal(replica));
+		log.flush();
+	}
+
+	synchronized void logReplica(INameserver replica) throws IOException {
+		this.write(log, REPLICA, "", marshal(replica));
+		log.flush();
+	}
+
+	/**
+	 * Writes the given state as a new snapshot and deletes the files it
+	 * replaces. Registrations logged meanwhile go to the next log.
+	 */
+	void snapshot(ZoneTable<String> users, ZoneTable<Delegation> zones, List<INameserver> replicas) throws IOException {
+		long snapshotGeneration;
+		Map<String, String> userEntries;
+		Map<String, Delegation> zoneEntries;
+		synchronized (this) {
+			// everything logged before the switch is in the tables by now
+			log.close();
+			snapshotGeneration = ++generation;
+			log = this.open(this.file(generation, ".log"));
+			userEntries = users.snapshot();
+			zoneEntries = zones.snapshot();
+		}
+
+		Path file = this.file(snapshotGeneration, ".snapshot");
+		Path tmp = dir.resolve(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			for (Map.Entry<String, String> user : userEntries.entrySet()) {
+				out.writeByte(USER);
+				out.writeUTF(user.getKey());
+				out.writeUTF(user.getValue());
+			}
+			for (Map.Entry<String, Delegation> zone : zoneEntries.entrySet()) {
+				Delegation delegation = zone.getValue();
+				this.write(out, ZONE, zone.getKey(), delegation.marshalledPrimary());
+				for (MarshalledObject<INameserver> replica : delegation.marshalledReplicas()) {
+					this.write(out, ZONE_REPLICA, zone.getKey(), replica);
+				}
+			}
+			for (INameserver replica : replicas) {
+				this.write(out, REPLICA, "", marshal(replica));
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		for (long old : this.generations(".snapshot")) {
+			if (old < snapshotGeneration) Files.deleteIfExists(this.file(old, ".snapshot"));
+		}
+		for (long old : this.generations(".log")) {
+			if (old < snapshotGeneration) Files.deleteIfExists(this.file(old, ".log"));
+		}
+	}
+
+	synchronized void close() throws IOException {
+		if (log != null) log.close();
+	}
+
+	static MarshalledObject<INameserver> marshal(INameserver nameserver) throws IOException {
+		return new MarshalledObject<INameserver>(nameserver);
+	}
+
+	private void write(DataOutputStream out, byte type, String zone, MarshalledObject<INameserver> stub) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream object = new ObjectOutputStream(bytes)) {
+			object.writeObject(stub);
+		}
+		out.writeByte(type);
+		out.writeUTF(zone);
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	/**
+	 * Reads the records of a file. A log may end with a record that was cut
+	 * off by a crash; it is ignored.
+	 */
+	@SuppressWarnings("unchecked")
+	private int read(Path file, Restorer restorer, boolean snapshot) throws IOException {
+		int records = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (snapshot && in.readInt() != MAGIC) throw new IOException(file + " is not a zone snapshot.");
+			while (true) {
+				int type = in.read();
+				if (type < 0) break;
+				String key = in.readUTF();
+				if (type == USER) {
+					restorer.user(key, in.readUTF());
+				} else {
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					MarshalledObject<INameserver> stub;
+					try (ObjectInputStream object = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+						stub = (MarshalledObject<INameserver>) object.readObject();
+					} catch (ClassNotFoundException e) {
+						throw new IOException(e);
+					}
+					if (type == ZONE) restorer.zone(key, stub);
+					else if (type == ZONE_REPLICA) restorer.zoneReplica(key, stub);
+					else if (type == REPLICA) restorer.replica(stub);
+					else throw new IOException(file + " contains an unknown record type " + type + ".");
+				}
+				records++;
+			}
+		} catch (EOFException e) {
+			if (snapshot) throw e;
+		}
+		return records;
+	}
+
+	private DataOutputStream open(Path file) throws IOException {
+		OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		return new DataOutputStream(new BufferedOutputStream(out));
+	}
+
+	private Path file(long generation, String suffix) {
+		return dir.resolve(name + "." + generation + suffix);
+	}
+
+	/**
+	 * @return the generations of the existing files with the given suffix,
+	 *         in ascending order
+	 */
+	private List<Long> generations(String suffix) throws IOException {
+		List<Long> generations = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, name + ".*" + suffix)) {
+			for (Path file : files) {
+				String fileName = file.getFileName().toString();
+				String number = fileName.substring(name.length() + 1, fileName.length() - suffix.length());
+				try {
+					generations.add(Long.parseLong(number));
+				} catch (NumberFormatException e) {
+					// another component's file with a longer name
+				}
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+}
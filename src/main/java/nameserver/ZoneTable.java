@@ -0,0 +1,143 @@
+package nameserver;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The names of a zone, i.e. its users or its subzones, mapped to their
+ * entries.
+ * <p/>
+ * Lookups read a {@link ConcurrentHashMap} without locking, so they scale
+ * with the number of RMI threads. Writes are serialized on the table and
+ * count a version. {@link #snapshot()} returns a sorted copy that is cached
+ * until the next write; it is built without holding the lock, so listing a
+ * zone never blocks writers.
+ * <p/>
+ * The names of the latest writes are kept with their versions, so that
+ * {@link #changesSince(long)} can tell a copy of the table what changed.
+ *
+ * @param <V>
+ *            the entry type
+ */
+class ZoneTable<V> {
+
+	private static final int MAX_CHANGES = 4096;
+
+	private final ConcurrentHashMap<String, V> entries = new ConcurrentHashMap<String, V>();
+	private volatile long version;
+	private volatile Snapshot<V> snapshot;
+	// guarded by this, the oldest first
+	private final ArrayDeque<Change> changes = new ArrayDeque<Change>();
+
+	V get(String name) {
+		return entries.get(name);
+	}
+
+	boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the previous entry of the name, or {@code null}
+	 */
+	synchronized V put(String name, V entry) {
+		V previous = entries.put(name, entry);
+		this.changed(name);
+		return previous;
+	}
+
+	/**
+	 * @return the existing entry of the name, or {@code null} if the given
+	 *         one was added
+	 */
+	synchronized V putIfAbsent(String name, V entry) {
+		V existing = entries.putIfAbsent(name, entry);
+		if (existing == null) this.changed(name);
+		return existing;
+	}
+
+	synchronized V remove(String name) {
+		V removed = entries.remove(name);
+		if (removed != null) this.changed(name);
+		return removed;
+	}
+
+	/**
+	 * @return the number of writes so far
+	 */
+	long version() {
+		return version;
+	}
+
+	/**
+	 * @param since
+	 *            a version as returned by {@link #version()}
+	 * @return the current entries of the names written after the given
+	 *         version, with {@code null} for removed names, or {@code null}
+	 *         if these writes are no longer known
+	 */
+	synchronized Map<String, V> changesSince(long since) {
+		if (since < 0 || since > version) return null;
+		Change oldest = changes.peekFirst();
+		if (since < version && (oldest == null || oldest.version > since + 1)) return null;
+
+		Map<String, V> changed = new HashMap<String, V>();
+		for (Iterator<Change> it = changes.descendingIterator(); it.hasNext();) {
+			Change change = it.next();
+			if (change.version <= since) break;
+			if (!changed.containsKey(change.name)) changed.put(change.name, entries.get(change.name));
+		}
+		return changed;
+	}
+
+	private void changed(String name) {
+		version++;
+		changes.addLast(new Change(version, name));
+		if (changes.size() > MAX_CHANGES) changes.removeFirst();
+	}
+
+	/**
+	 * @return the entries sorted by name, as of a recent point in time; the
+	 *         map cannot be modified
+	 */
+	SortedMap<String, V> snapshot() {
+		Snapshot<V> cached = snapshot;
+		// read before copying: every write up to this version is in the copy
+		long current = version;
+		if (cached != null && cached.version == current) return cached.entries;
+
+		SortedMap<String, V> copy = Collections.unmodifiableSortedMap(new TreeMap<String, V>(entries));
+		snapshot = new Snapshot<V>(current, copy);
+		return copy;
+	}
+
+	private static class Change {
+		final long version;
+		final String name;
+
+		Change(long version, String name) {
+			this.version = version;
+			this.name = name;
+		}
+	}
+
+	private static class Snapshot<V> {
+		final long version;
+		final SortedMap<String, V> entries;
+
+		Snapshot(long version, SortedMap<String, V> entries) {
+			this.version = version;
+			this.entries = entries;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package nameserver;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * The users of a zone as returned by
+ * {@link INameserverForChatserver#transfer(long)}: either all of them or the
+ * changes since a given version.
+ */
+public class ZoneTransfer implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long version;
+	private final boolean full;
+	private final Map<String, String> users;
+
+	private ZoneTransfer(long version, boolean full, Map<String, String> users) {
+		this.version = version;
+		this.full = full;
+		this.users = users;
+	}
+
+	public static ZoneTransfer full(long version, Map<String, String> users) {
+		return new ZoneTransfer(version, true, users);
+	}
+
+	public static ZoneTransfer delta(long version, Map<String, String> changes) {
+		return new ZoneTransfer(version, false, changes);
+	}
+
+	/**
+	 * @return the version to pass to the next transfer
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return {@code true} if {@link #getUsers()} replaces the whole zone,
+	 *         {@code false} if it holds the changes only
+	 */
+	public boolean isFull() {
+		return full;
+	}
+
+	/**
+	 * @return the addresses by username; in a delta, a {@code null} address
+	 *         stands for a removed user
+	 */
+	public Map<String, String> getUsers() {
+		return users;
+	}
+}
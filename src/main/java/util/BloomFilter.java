@@ -0,0 +1,69 @@
+package util;
+
+/**
+ * A Bloom filter of strings.
+ * <p/>
+ * {@link #mightContain(CharSequence)} never answers {@code false} for an
+ * added string, and answers {@code true} for a string that was not added
+ * only with about the false positive rate given at construction. The filter
+ * is not thread-safe while strings are added; build it completely before
+ * publishing it to other threads.
+ */
+public class BloomFilter {
+
+	private final long[] bits;
+	private final int size;
+	private final int hashes;
+
+	/**
+	 * @param expectedItems
+	 *            the number of strings that will be added
+	 * @param falsePositiveRate
+	 *            the accepted rate of false positives, e.g. {@code 0.01}
+	 */
+	public BloomFilter(int expectedItems, double falsePositiveRate) {
+		int n = Math.max(1, expectedItems);
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+		this.size = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+		this.hashes = Math.max(1, (int) Math.round((double) size / n * ln2));
+		this.bits = new long[(size + 63) / 64];
+	}
+
+	public void add(CharSequence item) {
+		long hash = hash(item);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashes; i++) {
+			int index = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+			bits[index >>> 6] |= 1L << index;
+		}
+	}
+
+	public boolean mightContain(CharSequence item) {
+		long hash = hash(item);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashes; i++) {
+			int index = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+			if ((bits[index >>> 6] & (1L << index)) == 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 64 bit FNV-1a over the chars, followed by a final mix so that both
+	 * halves are usable as independent hashes.
+	 */
+	private static long hash(CharSequence item) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < item.length(); i++) {
+			hash ^= item.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -2,6 +2,7 @@ package util;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 import java.util.Set;
 
@@ -39,6 +40,24 @@ public final class Config {
 		return this.bundle.getString(key);
 	}
 
+	/**
+	 * Returns the value as String for the given key or the given default value
+	 * if the key is not configured.
+	 *
+	 * @param key
+	 *            the property's key
+	 * @param defaultValue
+	 *            the value to return if the property is missing
+	 * @return String value of the property
+	 */
+	public String getString(String key, String defaultValue) {
+		try {
+			return getString(key);
+		} catch (MissingResourceException e) {
+			return defaultValue;
+		}
+	}
+
 	/**
 	 * Returns the value as {@code int} for the given key.
 	 *
@@ -52,6 +71,23 @@ public final class Config {
 		return Integer.parseInt(getString(key));
 	}
 
+	/**
+	 * Returns the value as {@code int} for the given key or the given default
+	 * value if the key is not configured.
+	 *
+	 * @param key
+	 *            the property's key
+	 * @param defaultValue
+	 *            the value to return if the property is missing
+	 * @return int value of the property
+	 * @throws NumberFormatException
+	 *             if the String cannot be parsed to an Integer
+	 */
+	public int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
 	/**
 	 * Sets the value for the given key.
 	 *
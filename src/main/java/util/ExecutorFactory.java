@@ -0,0 +1,157 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the {@link ExecutorService} a component runs its connection and
+ * message handlers on.
+ * <p/>
+ * The implementation is chosen with the {@code executor.type} property:
+ * <ul>
+ * <li>{@code virtual} - one virtual thread per task. Needs a Java 21 runtime,
+ * on older runtimes the bounded pool is used instead.</li>
+ * <li>{@code pool} - at most {@code executor.pool.size} platform threads.
+ * Tasks that do not find a free thread wait in the queue, or are rejected if
+ * the executor was created with a queue capacity of 0.</li>
+ * </ul>
+ * Tasks that hold their thread for a long time, such as the session of a
+ * blocking connection, use {@link #createUnbounded(Config, String)} instead,
+ * which never lets them wait.
+ */
+public final class ExecutorFactory {
+
+	private static final int DEFAULT_POOL_SIZE = 256;
+
+	private ExecutorFactory() {
+	}
+
+	/**
+	 * Creates the executor configured in the given {@link Config}.
+	 *
+	 * @param config
+	 *            the configuration to read {@code executor.*} from
+	 * @param name
+	 *            prefix for the names of the created threads
+	 * @return the executor
+	 */
+	public static ExecutorService create(Config config, String name) {
+		return create(config, name, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates the executor configured in the given {@link Config}. If it is a
+	 * pool, at most {@code queueCapacity} tasks wait for a free thread;
+	 * further tasks are rejected with a
+	 * {@link java.util.concurrent.RejectedExecutionException}.
+	 *
+	 * @param config
+	 *            the configuration to read {@code executor.*} from
+	 * @param name
+	 *            prefix for the names of the created threads
+	 * @param queueCapacity
+	 *            the maximum number of waiting tasks, 0 to reject every task
+	 *            that does not find a free thread
+	 * @return the executor
+	 */
+	public static ExecutorService create(Config config, String name, int queueCapacity) {
+		if (config.getString("executor.type", "pool").equals("virtual")) {
+			ExecutorService virtual = newVirtualThreadExecutor();
+			if (virtual != null) {
+				return virtual;
+			}
+		}
+		return newBoundedPool(config.getInt("executor.pool.size", DEFAULT_POOL_SIZE), queueCapacity, name);
+	}
+
+	/**
+	 * Creates an executor that starts every task at once: virtual threads if
+	 * {@code executor.type} is {@code virtual}, otherwise a pool that grows
+	 * with the number of running tasks, whatever {@code executor.pool.size}
+	 * says. Idle platform threads are released after a minute.
+	 *
+	 * @param config
+	 *            the configuration to read {@code executor.type} from
+	 * @param name
+	 *            prefix for the names of the created threads
+	 * @return the executor
+	 */
+	public static ExecutorService createUnbounded(Config config, String name) {
+		if (config.getString("executor.type", "pool").equals("virtual")) {
+			ExecutorService virtual = newVirtualThreadExecutor();
+			if (virtual != null) {
+				return virtual;
+			}
+		}
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), threadFactory(name));
+	}
+
+	/**
+	 * Creates a pool of at most {@code size} platform threads. Idle threads
+	 * are released after a minute.
+	 *
+	 * @param size
+	 *            the maximum number of threads
+	 * @param name
+	 *            prefix for the thread names
+	 * @return the executor
+	 */
+	public static ExecutorService newBoundedPool(int size, String name) {
+		return newBoundedPool(size, Integer.MAX_VALUE, name);
+	}
+
+	/**
+	 * Creates a pool of at most {@code size} platform threads whose queue
+	 * holds at most {@code queueCapacity} waiting tasks. Further tasks are
+	 * rejected with a {@link java.util.concurrent.RejectedExecutionException}.
+	 *
+	 * @param size
+	 *            the maximum number of threads
+	 * @param queueCapacity
+	 *            the maximum number of waiting tasks, 0 for none
+	 * @param name
+	 *            prefix for the thread names
+	 * @return the executor
+	 */
+	public static ExecutorService newBoundedPool(int size, int queueCapacity, final String name) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60,
+				TimeUnit.SECONDS, queueCapacity == 0 ? new SynchronousQueue<Runnable>() : new LinkedBlockingQueue<Runnable>(queueCapacity),
+				threadFactory(name));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private static ThreadFactory threadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, name + "-" + count.incrementAndGet());
+			}
+		};
+	}
+
+	/**
+	 * Returns {@code Executors.newVirtualThreadPerTaskExecutor()} if the
+	 * runtime supports virtual threads, {@code null} otherwise. Looked up
+	 * reflectively so the sources still compile for older Java versions.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.err.println("Virtual threads are not supported by this runtime, using a thread pool.");
+			return null;
+		}
+	}
+}
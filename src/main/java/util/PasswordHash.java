@@ -0,0 +1,132 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashes.
+ * <p/>
+ * A hash is stored as {@code pbkdf2$<iterations>$<salt>$<hash>} with salt
+ * and hash in Base64. Stored credentials without the {@code pbkdf2$} prefix
+ * are treated as plaintext passwords, so existing user files keep working.
+ */
+public final class PasswordHash {
+
+	public static final String PREFIX = "pbkdf2$";
+	public static final int DEFAULT_ITERATIONS = 100000;
+
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 32;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private PasswordHash() {
+	}
+
+	/**
+	 * Hashes the password with a new random salt.
+	 *
+	 * @param password
+	 *            the password to hash
+	 * @param iterations
+	 *            the PBKDF2 iteration count
+	 * @return the encoded hash
+	 */
+	public static String hash(String password, int iterations) {
+		byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		byte[] hash = pbkdf2(password, salt, iterations, HASH_LENGTH);
+		Base64.Encoder base64 = Base64.getEncoder();
+		return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+	}
+
+	/**
+	 * Checks a password against a stored credential in constant time with
+	 * respect to the password.
+	 *
+	 * @param password
+	 *            the password to check
+	 * @param stored
+	 *            an encoded hash or a plaintext password
+	 * @return {@code true} if the password matches
+	 */
+	public static boolean verify(String password, String stored) {
+		if (!stored.startsWith(PREFIX)) {
+			return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+					stored.getBytes(StandardCharsets.UTF_8));
+		}
+
+		String[] parts = stored.split("\\$");
+		if (parts.length != 4) return false;
+		try {
+			int iterations = Integer.parseInt(parts[1]);
+			byte[] salt = Base64.getDecoder().decode(parts[2]);
+			byte[] expected = Base64.getDecoder().decode(parts[3]);
+			return MessageDigest.isEqual(pbkdf2(password, salt, iterations, expected.length), expected);
+		} catch (IllegalArgumentException e) {
+			// malformed iteration count or Base64
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a credential that takes as long to verify as the given one,
+	 * for checking the passwords of unknown users. Its password is random
+	 * and never revealed.
+	 *
+	 * @param like
+	 *            a stored credential, or {@code null} for a hash with
+	 *            {@link #DEFAULT_ITERATIONS}
+	 * @return a plaintext password if the given credential is one,
+	 *         otherwise an encoded hash with the same iteration count
+	 */
+	public static String dummy(String like) {
+		byte[] random = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(random);
+		String password = Base64.getEncoder().encodeToString(random);
+		if (like != null && !like.startsWith(PREFIX)) return password;
+
+		int iterations = DEFAULT_ITERATIONS;
+		if (like != null) {
+			String[] parts = like.split("\\$");
+			try {
+				if (parts.length == 4) iterations = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException e) {
+				// malformed, verifies as fast as any malformed credential
+			}
+		}
+		return hash(password, iterations);
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations, int length) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available.", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/**
+	 * Prints the hash of a password, for use in {@code user.properties}.
+	 *
+	 * @param args
+	 *            the password and optionally the iteration count
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: PasswordHash <password> [<iterations>]");
+			return;
+		}
+		int iterations = args.length == 2 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+		System.out.println(hash(args[0], iterations));
+	}
+}
@@ -0,0 +1,155 @@
+package util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A size-bounded cache whose entries expire after a fixed time to live.
+ * <p/>
+ * The cache is split into independently locked stripes, each a
+ * {@link LinkedHashMap} in access order, so concurrent callers rarely
+ * contend and every stripe evicts its least recently used entry once it is
+ * full. Expired entries are dropped when they are read.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+public class TtlCache<K, V> {
+
+	private static final int STRIPES = 16;
+
+	private final Stripe<K, V>[] stripes;
+	private final long ttlNanos;
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of entries
+	 * @param ttl
+	 *            the time to live of an entry
+	 * @param unit
+	 *            the unit of {@code ttl}
+	 */
+	public TtlCache(int maxSize, long ttl, TimeUnit unit) {
+		this.ttlNanos = unit.toNanos(ttl);
+		@SuppressWarnings("unchecked")
+		Stripe<K, V>[] stripes = (Stripe<K, V>[]) new Stripe<?, ?>[STRIPES];
+		this.stripes = stripes;
+		int stripeSize = Math.max(1, (maxSize + STRIPES - 1) / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe<K, V>(stripeSize);
+		}
+	}
+
+	/**
+	 * @return the cached value or {@code null} if there is none or it expired
+	 */
+	public V get(K key) {
+		Stripe<K, V> stripe = stripe(key);
+		synchronized (stripe) {
+			Entry<V> entry = stripe.get(key);
+			if (entry == null) return null;
+			if (System.nanoTime() - entry.expires > 0) {
+				stripe.remove(key);
+				return null;
+			}
+			return entry.value;
+		}
+	}
+
+	/**
+	 * Caches the value for the configured time to live.
+	 */
+	public void put(K key, V value) {
+		this.put(key, value, ttlNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Caches the value for the given time to live.
+	 */
+	public void put(K key, V value, long ttl, TimeUnit unit) {
+		if (ttl <= 0) return;
+		Stripe<K, V> stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.put(key, new Entry<V>(value, System.nanoTime() + unit.toNanos(ttl)));
+		}
+	}
+
+	/**
+	 * Removes the entry of the given key.
+	 */
+	public void invalidate(K key) {
+		Stripe<K, V> stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.remove(key);
+		}
+	}
+
+	/**
+	 * Removes all entries holding the given value.
+	 */
+	public void invalidateValue(V value) {
+		for (Stripe<K, V> stripe : stripes) {
+			synchronized (stripe) {
+				for (Iterator<Entry<V>> it = stripe.values().iterator(); it.hasNext();) {
+					if (it.next().value.equals(value)) it.remove();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		for (Stripe<K, V> stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of entries, including expired ones not yet dropped
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe<K, V> stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	private Stripe<K, V> stripe(K key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return stripes[hash & (STRIPES - 1)];
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long expires;
+
+		Entry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private static class Stripe<K, V> extends LinkedHashMap<K, Entry<V>> {
+		private static final long serialVersionUID = 1L;
+		private final int maxSize;
+
+		Stripe(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+			return size() > maxSize;
+		}
+	}
+}
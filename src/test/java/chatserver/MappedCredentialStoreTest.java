@@ -0,0 +1,109 @@
+package chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes a compiled credential file and reads it back through the mapping.
+ */
+public class MappedCredentialStoreTest {
+
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = Files.createTempFile("users", ".db");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void usernamesAreSortedByTheirBytes() throws IOException {
+		Map<String, String> accounts = new HashMap<String, String>();
+		accounts.put("patrick.at", "correcthorse");
+		accounts.put("alice.vienna.at", "12345");
+		accounts.put("bill.at", "23456");
+		accounts.put("\u00e4rger.at", "34567");
+		MappedCredentialStore.write(accounts, file);
+
+		try (MappedCredentialStore store = new MappedCredentialStore(file)) {
+			assertEquals(4, store.size());
+			assertEquals("alice.vienna.at", store.username(0));
+			assertEquals("bill.at", store.username(1));
+			assertEquals("patrick.at", store.username(2));
+			// two UTF-8 bytes, both above every ASCII byte
+			assertEquals("\u00e4rger.at", store.username(3));
+		}
+	}
+
+	@Test
+	public void credentialsAreFoundByUsername() throws IOException {
+		Map<String, String> accounts = new HashMap<String, String>();
+		accounts.put("bill.at", "23456");
+		accounts.put("bill.de", "34567");
+		accounts.put("bill", "45678");
+		MappedCredentialStore.write(accounts, file);
+
+		try (MappedCredentialStore store = new MappedCredentialStore(file)) {
+			assertEquals("23456", store.credential("bill.at"));
+			assertEquals("34567", store.credential("bill.de"));
+			assertEquals("45678", store.credential("bill"));
+			assertNull(store.credential("bill.a"));
+			assertNull(store.credential("zoe.at"));
+			assertNull(store.credential(""));
+		}
+	}
+
+	@Test
+	public void firstFindsTheStartOfAPrefix() throws IOException {
+		Map<String, String> accounts = new HashMap<String, String>();
+		for (int i = 0; i < 100; i++) {
+			accounts.put(String.format("user%03d", i), "pw");
+		}
+		accounts.put("alice.vienna.at", "12345");
+		MappedCredentialStore.write(accounts, file);
+
+		try (MappedCredentialStore store = new MappedCredentialStore(file)) {
+			assertEquals(0, store.first(""));
+			assertEquals(1, store.first("user"));
+			assertEquals("user050", store.username(store.first("user05")));
+			assertEquals(store.size(), store.first("zoe"));
+		}
+	}
+
+	@Test
+	public void emptyStore() throws IOException {
+		MappedCredentialStore.write(new HashMap<String, String>(), file);
+
+		try (MappedCredentialStore store = new MappedCredentialStore(file)) {
+			assertEquals(0, store.size());
+			assertEquals(0, store.first("alice"));
+			assertNull(store.credential("alice.vienna.at"));
+		}
+	}
+
+	@Test
+	public void otherFilesAreRejected() throws IOException {
+		Files.write(file, "alice.vienna.at=12345\n".getBytes("UTF-8"));
+		try {
+			new MappedCredentialStore(file).close();
+			fail("Opened a properties file as credential file.");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the {@link MessageJournal} restores what was appended, across
+ * segments and after a torn write.
+ */
+public class MessageJournalTest {
+
+	private static final int SEGMENT_SIZE = 256;
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("journal");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void replayRestoresMessagesOfAllSegments() throws IOException {
+		MessageHistory history = new MessageHistory(64);
+		try (MessageJournal journal = new MessageJournal(dir, SEGMENT_SIZE, 60000)) {
+			for (int i = 1; i <= 20; i++) {
+				journal.append(history.append("patrick.at", "message " + i));
+			}
+		}
+		assertTrue(this.segments() > 1);
+
+		MessageHistory restored = new MessageHistory(64);
+		try (MessageJournal journal = new MessageJournal(dir, SEGMENT_SIZE, 60000)) {
+			assertEquals(20, journal.replay(restored));
+		}
+		List<MessageHistory.Entry> entries = restored.last(64);
+		assertEquals(20, entries.size());
+		assertEquals(1, entries.get(0).sequence);
+		assertEquals("message 20", restored.latest().message);
+		assertEquals(21, restored.append("alice.vienna.at", "next").sequence);
+	}
+
+	@Test
+	public void replayStopsAtATornRecordAndAppendsBehindTheLastValidOne() throws IOException {
+		MessageHistory history = new MessageHistory(16);
+		try (MessageJournal journal = new MessageJournal(dir, SEGMENT_SIZE, 60000)) {
+			journal.append(history.append("patrick.at", "first"));
+			journal.append(history.append("patrick.at", "second"));
+			journal.append(history.append("patrick.at", "third"));
+		}
+		this.corrupt("third");
+
+		MessageHistory restored = new MessageHistory(16);
+		try (MessageJournal journal = new MessageJournal(dir, SEGMENT_SIZE, 60000)) {
+			assertEquals(2, journal.replay(restored));
+			journal.append(restored.append("alice.vienna.at", "fourth"));
+		}
+
+		MessageHistory again = new MessageHistory(16);
+		try (MessageJournal journal = new MessageJournal(dir, SEGMENT_SIZE, 60000)) {
+			assertEquals(3, journal.replay(again));
+		}
+		List<MessageHistory.Entry> entries = again.last(16);
+		assertEquals("second", entries.get(1).message);
+		assertEquals("fourth", entries.get(2).message);
+		assertEquals(3, entries.get(2).sequence);
+	}
+
+	@Test
+	public void concurrentAppendsAreJournaledInSequenceOrder() throws Exception {
+		final MessageHistory history = new MessageHistory(64);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		try (final MessageJournal journal = new MessageJournal(dir, SEGMENT_SIZE, 60000)) {
+			for (int t = 0; t < 8; t++) {
+				final String sender = "user" + t;
+				Thread thread = new Thread() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							for (int i = 0; i < 200; i++) {
+								journal.append(history, sender, "message " + i);
+							}
+						} catch (Exception e) {
+							throw new RuntimeException(e);
+						}
+					}
+				};
+				thread.start();
+				threads.add(thread);
+			}
+			start.countDown();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+
+		// records the order in which the journal hands back the messages
+		final List<Long> sequences = new ArrayList<Long>();
+		MessageHistory restored = new MessageHistory(2048) {
+			@Override
+			void restore(MessageHistory.Entry entry) {
+				sequences.add(entry.sequence);
+				super.restore(entry);
+			}
+		};
+		try (MessageJournal journal = new MessageJournal(dir, SEGMENT_SIZE, 60000)) {
+			assertEquals(1600, journal.replay(restored));
+		}
+		for (int i = 0; i < sequences.size(); i++) {
+			assertEquals(i + 1, (long) sequences.get(i));
+		}
+	}
+
+	@Test
+	public void emptyDirectoryRestoresNothing() throws IOException {
+		try (MessageJournal journal = new MessageJournal(dir, SEGMENT_SIZE, 60000)) {
+			assertEquals(0, journal.replay(new MessageHistory(16)));
+		}
+	}
+
+	private int segments() throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Flips a byte of the given message text, as a crash in the middle of
+	 * writing it could.
+	 */
+	private void corrupt(String message) throws IOException {
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				byte[] bytes = Files.readAllBytes(file);
+				for (int i = 0; i + text.length <= bytes.length; i++) {
+					int j = 0;
+					while (j < text.length && bytes[i + j] == text[j]) j++;
+					if (j == text.length) {
+						bytes[i] ^= 0x20;
+						Files.write(file, bytes);
+						return;
+					}
+				}
+			}
+		}
+		throw new IOException("No record with the message '" + message + "'.");
+	}
+}
@@ -0,0 +1,88 @@
+package chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Checks the backpressure policies of the {@link OutboundQueue}.
+ */
+public class OutboundQueueTest {
+
+	private static final int SIZE = 10;
+
+	@Test
+	public void dropOldestKeepsTheNewestMessages() {
+		BackpressurePolicy policy = new BackpressurePolicy(100, 3 * SIZE, SIZE, 1000, BackpressurePolicy.Action.DROP_OLDEST);
+		OutboundQueue queue = new OutboundQueue(policy);
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(message(i)));
+		}
+
+		assertEquals(3, policy.droppedOldest.get());
+		assertEquals(1, policy.congestions.get());
+		assertEquals(SIZE, queue.pendingBytes());
+		ByteBuffer[] batch = new ByteBuffer[4];
+		assertEquals(1, queue.drainTo(batch));
+		assertEquals(3, batch[0].get(0));
+	}
+
+	@Test
+	public void dropNewestKeepsTheQueuedMessages() {
+		BackpressurePolicy policy = new BackpressurePolicy(100, 3 * SIZE, SIZE, 1000, BackpressurePolicy.Action.DROP_NEWEST);
+		OutboundQueue queue = new OutboundQueue(policy);
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue(queue.offer(message(i)));
+		}
+		assertFalse(queue.offer(message(3)));
+		assertFalse(queue.offer(message(4)));
+		assertEquals(2, policy.droppedNewest.get());
+
+		// the writer catches up below the low watermark
+		ByteBuffer[] batch = new ByteBuffer[2];
+		assertEquals(2, queue.drainTo(batch));
+		assertEquals(0, batch[0].get(0));
+		assertTrue(queue.offer(message(5)));
+		assertEquals(2 * SIZE, queue.pendingBytes());
+	}
+
+	@Test
+	public void disconnectAfterTheGracePeriod() throws InterruptedException {
+		BackpressurePolicy policy = new BackpressurePolicy(100, 3 * SIZE, SIZE, 50, BackpressurePolicy.Action.DISCONNECT);
+		OutboundQueue queue = new OutboundQueue(policy);
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(message(i)));
+		}
+		assertFalse(queue.checkOverdue());
+
+		Thread.sleep(100);
+		assertTrue(queue.checkOverdue());
+		assertTrue(queue.isOverdue());
+		assertFalse(queue.offer(message(4)));
+		assertEquals(1, policy.disconnects.get());
+	}
+
+	@Test
+	public void capacityLimitsTheNumberOfMessages() {
+		BackpressurePolicy policy = new BackpressurePolicy(2, 100 * SIZE, SIZE, 1000, BackpressurePolicy.Action.DROP_NEWEST);
+		OutboundQueue queue = new OutboundQueue(policy);
+
+		assertTrue(queue.offer(message(0)));
+		assertTrue(queue.offer(message(1)));
+		assertFalse(queue.offer(message(2)));
+		assertEquals(1, policy.droppedFull.get());
+	}
+
+	private static ByteBuffer message(int id) {
+		ByteBuffer message = ByteBuffer.allocate(SIZE);
+		message.put(0, (byte) id);
+		return message;
+	}
+}
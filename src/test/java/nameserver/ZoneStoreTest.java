@@ -0,0 +1,201 @@
+package nameserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.rmi.MarshalledObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes the state of a nameserver with a {@link ZoneStore} and loads it
+ * again, from the log, from a snapshot and from a log with a torn record.
+ */
+public class ZoneStoreTest {
+
+	private Path dir;
+	private final List<INameserver> exported = new ArrayList<INameserver>();
+	private INameserver vienna;
+	private INameserver viennaReplica;
+	private INameserver replica;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("zones");
+		vienna = this.export();
+		viennaReplica = this.export();
+		replica = this.export();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (INameserver nameserver : exported) {
+			UnicastRemoteObject.unexportObject(nameserver, true);
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void loggedRegistrationsAreRestored() throws Exception {
+		ZoneStore store = new ZoneStore(dir, "ns-at");
+		assertEquals(0, store.load(new Recorder()));
+		store.logUser("alice", "localhost:19067");
+		store.logZone("vienna", vienna);
+		store.logZoneReplica("vienna", viennaReplica);
+		store.logReplica(replica);
+		store.close();
+
+		Recorder restored = new Recorder();
+		assertEquals(4, new ZoneStore(dir, "ns-at").load(restored));
+		assertEquals(Collections.singletonMap("alice", "localhost:19067"), restored.users);
+		assertEquals(vienna, restored.zones.get("vienna").get());
+		assertEquals(viennaReplica, restored.zoneReplicas.get(0).get());
+		assertEquals(replica, restored.replicas.get(0).get());
+	}
+
+	@Test
+	public void snapshotReplacesTheOlderFiles() throws Exception {
+		ZoneStore store = new ZoneStore(dir, "ns-at");
+		store.load(new Recorder());
+		ZoneTable<String> users = new ZoneTable<String>();
+		ZoneTable<Delegation> zones = new ZoneTable<Delegation>();
+		users.put("alice", "localhost:19067");
+		store.logUser("alice", "localhost:19067");
+		Delegation delegation = new Delegation(vienna);
+		delegation.addReplica(viennaReplica);
+		zones.put("vienna", delegation);
+		store.logZone("vienna", vienna);
+		store.logZoneReplica("vienna", viennaReplica);
+
+		store.snapshot(users, zones, Collections.singletonList(replica));
+		store.logUser("bill", "localhost:19068");
+		store.close();
+
+		assertEquals(1, this.count(".snapshot"));
+		assertEquals(1, this.count(".log"));
+
+		Recorder restored = new Recorder();
+		assertEquals(5, new ZoneStore(dir, "ns-at").load(restored));
+		assertEquals(2, restored.users.size());
+		assertEquals("localhost:19068", restored.users.get("bill"));
+		assertEquals(vienna, restored.zones.get("vienna").get());
+		assertEquals(viennaReplica, restored.zoneReplicas.get(0).get());
+		assertEquals(replica, restored.replicas.get(0).get());
+	}
+
+	@Test
+	public void tornRecordAtTheEndOfTheLogIsIgnored() throws Exception {
+		ZoneStore store = new ZoneStore(dir, "ns-at");
+		store.load(new Recorder());
+		store.logUser("alice", "localhost:19067");
+		store.logUser("bill", "localhost:19068");
+		store.close();
+
+		// a user record cut off in the middle of its name
+		try (OutputStream out = Files.newOutputStream(this.newestLog(), StandardOpenOption.APPEND)) {
+			out.write(new byte[] { 1, 0, 5, 'c' });
+		}
+
+		Recorder restored = new Recorder();
+		assertEquals(2, new ZoneStore(dir, "ns-at").load(restored));
+		assertEquals(2, restored.users.size());
+	}
+
+	@Test
+	public void filesOfOtherComponentsAreIgnored() throws Exception {
+		ZoneStore other = new ZoneStore(dir, "ns-at-2");
+		other.load(new Recorder());
+		other.logUser("alice", "localhost:19067");
+		other.close();
+
+		assertEquals(0, new ZoneStore(dir, "ns-at").load(new Recorder()));
+	}
+
+	private INameserver export() throws IOException {
+		INameserver nameserver = (INameserver) Proxy.newProxyInstance(INameserver.class.getClassLoader(),
+				new Class<?>[] { INameserver.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return null;
+					}
+				});
+		INameserver stub = (INameserver) UnicastRemoteObject.exportObject(nameserver, 0);
+		exported.add(nameserver);
+		return stub;
+	}
+
+	private int count(String suffix) throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + suffix)) {
+			for (Iterator<Path> it = files.iterator(); it.hasNext(); it.next()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private Path newestLog() throws IOException {
+		Path newest = null;
+		long generation = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+			for (Path file : files) {
+				String[] parts = file.getFileName().toString().split("\\.");
+				long current = Long.parseLong(parts[parts.length - 2]);
+				if (current > generation) {
+					generation = current;
+					newest = file;
+				}
+			}
+		}
+		return newest;
+	}
+
+	private static class Recorder implements ZoneStore.Restorer {
+		final Map<String, String> users = new HashMap<String, String>();
+		final Map<String, MarshalledObject<INameserver>> zones = new HashMap<String, MarshalledObject<INameserver>>();
+		final List<MarshalledObject<INameserver>> zoneReplicas = new ArrayList<MarshalledObject<INameserver>>();
+		final List<MarshalledObject<INameserver>> replicas = new ArrayList<MarshalledObject<INameserver>>();
+
+		@Override
+		public void user(String name, String address) {
+			users.put(name, address);
+		}
+
+		@Override
+		public void zone(String zone, MarshalledObject<INameserver> primary) {
+			zones.put(zone, primary);
+		}
+
+		@Override
+		public void zoneReplica(String zone, MarshalledObject<INameserver> replica) {
+			zoneReplicas.add(replica);
+		}
+
+		@Override
+		public void replica(MarshalledObject<INameserver> replica) {
+			replicas.add(replica);
+		}
+	}
+}
@@ -15,4 +15,9 @@ public interface Constants {
 	 */
 	public static final int WAIT_FOR_COMPONENT_STARTUP = 2000;
 
+	/**
+	 * Maximum time to wait (in milliseconds) for the output of a component before verifying it.
+	 */
+	public static final int WAIT_FOR_COMPONENT_OUTPUT = 5000;
+
 }
@@ -137,14 +137,17 @@ public class ScenarioTest {
 	 * <p/>
 	 * The data written to the {@link PrintStream} of component is compared against a {@link Matcher} built by the
 	 * expected String and {@link Flag}s. If it does not satisfy the condition, an {@link AssertionError} is thrown
-	 * with the reason and information about the matcher and failing value.
+	 * with the reason and information about the matcher and failing value. A component that writes nothing within
+	 * {@link Constants#WAIT_FOR_COMPONENT_OUTPUT} is verified against empty output.
 	 *
 	 * @param expected the condition
 	 * @param flags    the flags defining the type of the matcher.
 	 */
-	public void verify(String expected, Flag... flags) {
+	public void verify(String expected, Flag... flags) throws InterruptedException {
 		List<String> lines = component.out.reset();
-		while (lines.isEmpty()) {
+		long deadline = System.currentTimeMillis() + Constants.WAIT_FOR_COMPONENT_OUTPUT;
+		while (lines.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
 			lines = component.out.reset();
 		}
 		if (contains(Flag.LAST, (Object[]) flags)) {